@@ -1,27 +1,26 @@
+import file.ChunkIterator;
 import file.DigestFile;
+import file.RestoreSink;
 import message.*;
 import sender.*;
 import state.FileInfo;
 import state.State;
-import utils.Pair;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
 import java.net.MulticastSocket;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
 
 public class Peer implements TestInterface {
     private boolean closed = false;
@@ -34,6 +33,12 @@ public class Peer implements TestInterface {
     private final SockThread MDBSock;
     private final SockThread MDRSock;
     private final MessageHandler messageHandler;
+    private final Object reclaimLock = new Object();
+
+    // max number of PUTCHUNKs (and their chunks) in-flight during a backup
+    private static final int PUTCHUNK_WINDOW = Integer.getInteger("putchunk.window", 16);
+    // ms the MC messages wait to be sent together in one datagram (2.0 only). 0 => one datagram per message
+    private static final int MC_BATCH_WINDOW = Integer.getInteger("mc.batchWindow", 0);
 
     // thread pool
     private final ScheduledExecutorService testAppThreadPool =
@@ -71,8 +76,12 @@ public class Peer implements TestInterface {
         this.MDRSock = this.createSocketThread("MDR", MDR, MDRPort);
 
         if (this.protocolVersion.equals("2.0")) {
-            if (State.st.isStorageFull()) this.MDBSock.leave();
-            else this.MDBSock.join();
+            this.MCSock.setBatchWindow(MC_BATCH_WINDOW);
+            // unsub MDB while our storage is full
+            State.st.setStorageListener(isFull -> {
+                if (isFull) this.MDBSock.leave();
+                else this.MDBSock.join();
+            });
         }
 
         this.messageHandler = new MessageHandler(this.id, this.protocolVersion,
@@ -173,6 +182,7 @@ public class Peer implements TestInterface {
         this.MDRSock.close();
         try {
             State.exportMap();
+            DigestFile.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -222,7 +232,7 @@ public class Peer implements TestInterface {
         State.st.addTask(task);
 
         String fileId;
-        List<byte[]> chunks;
+        ChunkIterator chunks;
         try {
             fileId = DigestFile.getHash(filePath);
 
@@ -247,14 +257,29 @@ public class Peer implements TestInterface {
             throw new RemoteException("Couldn't divide file " + filePath);
         }
 
-        for (int i = 0; i < chunks.size(); ++i) {
-            // only backup chunks that don't have the desired replication degree
-            if (State.st.isChunkOk(fileId, i)) continue;
+        // chunks are only read from disk when there's room in the window of in-flight PUTCHUNKs
+        Semaphore window = new Semaphore(PUTCHUNK_WINDOW);
+        try (chunks) {
+            while (chunks.hasNext()) {
+                int i = chunks.getNextChunkNo();
+                State.st.declareChunk(fileId, i);  // only declares if it isn't declared yet
+
+                // only backup chunks that don't have the desired replication degree
+                if (State.st.isChunkOk(fileId, i)) {
+                    chunks.skip();
+                    continue;
+                }
 
-            PutChunkMsg putChunkMsg = new PutChunkMsg(this.protocolVersion, this.id,
-                    fileId, i, replicationDegree, chunks.get(i));
-            PutChunkSender putChunkSender = new PutChunkSender(this.MDBSock, putChunkMsg, this.messageHandler);
-            putChunkSender.restart();
+                window.acquire();
+                PutChunkMsg putChunkMsg = new PutChunkMsg(this.protocolVersion, this.id,
+                        fileId, i, replicationDegree, chunks.next());
+                PutChunkSender putChunkSender = new PutChunkSender(this.MDBSock, putChunkMsg, this.messageHandler,
+                        window::release);
+                putChunkSender.restart();
+            }
+        } catch (IOException | UncheckedIOException | InterruptedException e) {
+            State.st.rmTask(task);
+            throw new RemoteException("Couldn't read file " + filePath);
         }
 
         State.st.rmTask(task);
@@ -281,67 +306,27 @@ public class Peer implements TestInterface {
             throw new RemoteException("File " + filePath + " is too big");
         }
 
-        // Storing the futures to be able to restore the file after getting all the chunks (or failing
-        // if a chunk is missing)
-        List<Pair<Future<?>, MessageSender<? extends Message>>> senders = new ArrayList<>();
-        for (int currChunk = 0; currChunk < chunkNo; ++currChunk) {
-            // this is redundant because we have to be the initiator peer to restore a file
-            // if (State.st.amIStoringChunk(fileId, currChunk)) {
-            //     // code above would go here
-            // } else {
-            //     chunks[currChunk] = DigestFile.readChunk(filePath, currChunk);
-            // }
-
-            GetChunkMsg msg = new GetChunkMsg(this.protocolVersion, this.id, fileId, currChunk);
-            MessageSender<? extends Message> chunkSender;
-            if (this.protocolVersion.equals("2.0")) {
-                chunkSender = new GetChunkTCPSender(this.MCSock, msg, this.messageHandler);
-            } else {
-                chunkSender = new GetChunkSender(this.MCSock, msg, this.messageHandler);
-            }
-            senders.add(new Pair<>(this.testAppThreadPool.submit(chunkSender), chunkSender));
-        }
-
-        List<byte[]> chunks = new ArrayList<>(chunkNo);
-        for (var sender : senders) {
-            try {
-                sender.p1.get();
-            } catch (InterruptedException | ExecutionException e) {
-                State.st.rmTask(task);
-                throw new RemoteException("There was an error recovering a chunk of the file.");
-            }
-            int chunkNumber;
-            byte[] chunk;
-            if (this.protocolVersion.equals("2.0")) {
-                GetChunkTCPSender getChunkTCPSender = (GetChunkTCPSender) sender.p2;
-                chunkNumber = getChunkTCPSender.getMessage().getChunkNo();
-            } else {
-                GetChunkSender getChunkSender = (GetChunkSender) sender.p2;
-                chunkNumber = getChunkSender.getMessage().getChunkNo();
-            }
-
-            if (!sender.p2.getSuccess()) {
-                State.st.rmTask(task);
-                throw new RemoteException("Failed to restore the file " + filePath +
-                        " because of a missing chunk: " + chunkNumber);
-            }
-
-            if (this.protocolVersion.equals("2.0")) {
-                GetChunkTCPSender getChunkTCPSender = (GetChunkTCPSender) sender.p2;
-                chunk = getChunkTCPSender.getResponse();
-            } else {
-                GetChunkSender getChunkSender = (GetChunkSender) sender.p2;
-                chunk = getChunkSender.getResponse();
-            }
-            chunks.add(chunk);
+        // chunks are written as they arrive
+        String fileName = Paths.get(filePath).getFileName().toString();
+        int failedChunk;
+        try (RestoreSink sink = DigestFile.createRestoreSink(fileName, chunkNo)) {
+            RestoreSender restoreSender = new RestoreSender(this.MCSock, this.messageHandler, this.protocolVersion,
+                    this.id, fileId, chunkNo, sink);
+            failedChunk = restoreSender.run();
+            if (failedChunk < 0)
+                sink.finish();
+        } catch (IOException e) {
+            State.st.rmTask(task);
+            throw new RemoteException("Failed to write restored file: " + fileName);
+        } catch (InterruptedException e) {
+            State.st.rmTask(task);
+            throw new RemoteException("There was an error recovering a chunk of the file.");
         }
 
-        Path path = Paths.get(filePath);
-        try {
-            DigestFile.assembleFile(path.getFileName().toString(), chunks);
-        } catch (IOException e) {
+        if (failedChunk >= 0) {
             State.st.rmTask(task);
-            throw new RemoteException("Failed to write restored file: " + path.getFileName().toString());
+            throw new RemoteException("Failed to restore the file " + filePath +
+                    " because of a missing chunk: " + failedChunk);
         }
 
         State.st.rmTask(task);
@@ -350,7 +335,7 @@ public class Peer implements TestInterface {
 
     public String deleteFromId(String fileId) {
         if (this.protocolVersion.equals("2.0")) {
-            synchronized (State.st) {
+            synchronized (State.st.getFileLock(fileId)) {
                 // has initiated file
                 FileInfo fileInfo = State.st.getFileInfo(fileId);
                 if (fileInfo == null)
@@ -392,21 +377,23 @@ public class Peer implements TestInterface {
             String fileId = entry.getKey();
             // int desiredRep = entry.getValue().p1;
 
-            for (var chunkEntry : entry.getValue().getAllChunks().entrySet()) {
-                int chunkNo = chunkEntry.getKey();
-                int perceivedRep = chunkEntry.getValue().p1.size();
-                boolean isStored = chunkEntry.getValue().p2;
-                if (isStored && (force || perceivedRep > 1) && perceivedRep > 0) {
-                    // if we have the chunk stored => delete it && decrement perceived rep.
-                    long chunkSize = DigestFile.deleteChunk(fileId, chunkNo); // updates state capacity
-                    State.st.decrementChunkDeg(fileId, chunkNo, this.id);
-                    State.st.setAmStoringChunk(fileId, chunkNo, false);
-                    currentCap -= chunkSize;
-
-                    RemovedMsg removedMsg = new RemovedMsg(this.protocolVersion, this.id, fileId, chunkNo);
-                    this.MCSock.send(removedMsg);
+            synchronized (State.st.getFileLock(fileId)) {
+                for (var chunkEntry : entry.getValue().getAllChunks().entrySet()) {
+                    int chunkNo = chunkEntry.getKey();
+                    int perceivedRep = chunkEntry.getValue().p1.size();
+                    boolean isStored = chunkEntry.getValue().p2;
+                    if (isStored && (force || perceivedRep > 1) && perceivedRep > 0) {
+                        // if we have the chunk stored => delete it && decrement perceived rep.
+                        long chunkSize = DigestFile.deleteChunk(fileId, chunkNo); // updates state capacity
+                        State.st.decrementChunkDeg(fileId, chunkNo, this.id);
+                        State.st.setAmStoringChunk(fileId, chunkNo, false);
+                        currentCap -= chunkSize;
+
+                        RemovedMsg removedMsg = new RemovedMsg(this.protocolVersion, this.id, fileId, chunkNo);
+                        this.MCSock.send(removedMsg);
+                    }
+                    if (currentCap <= 0) break;
                 }
-                if (currentCap <= 0) break;
             }
             if (currentCap <= 0) break;
         }
@@ -419,7 +406,8 @@ public class Peer implements TestInterface {
         long newMaxDiskSpaceB = newMaxDiskSpaceKB * 1000L;
         boolean isDone = false;
 
-        synchronized (State.st) {
+        // only one reclaim at a time (the message handlers don't need to wait for it)
+        synchronized (this.reclaimLock) {
             if (newMaxDiskSpaceB < 0) {
                 State.st.setMaxDiskSpaceB(-1L);
                 // infinite capacity => do nothing
@@ -444,11 +432,6 @@ public class Peer implements TestInterface {
 
                 }
             }
-
-            if (this.protocolVersion.equals("2.0")) {
-                if (State.st.isStorageFull()) this.MDBSock.leave();
-                else this.MDBSock.join();
-            }
         }
 
         return "Max disk space set to " + (newMaxDiskSpaceKB < 0 ? "infinite" : newMaxDiskSpaceKB) + " KBytes.";
@@ -461,14 +444,11 @@ public class Peer implements TestInterface {
         StringBuilder chunksIStore = new StringBuilder();
         chunksIStore.append("Chunks I am storing:\n");
 
-        long maxStorageSizeKB;
-        long filledB;
-
-        synchronized (State.st) {
-            for (var entry : State.st.getAllFilesInfo().entrySet()) {
-                String fileId = entry.getKey();
-                FileInfo fileInfo = entry.getValue();
+        for (var entry : State.st.getAllFilesInfo().entrySet()) {
+            String fileId = entry.getKey();
+            FileInfo fileInfo = entry.getValue();
 
+            synchronized (State.st.getFileLock(fileId)) {
                 if (fileInfo.isInitiator()) {
                     filesIInitiated.append("\tFile path: ").append(fileInfo.getFilePath()).append("\n");
                     filesIInitiated.append("\t\tFile ID: ").append(fileId).append("\n");
@@ -494,17 +474,21 @@ public class Peer implements TestInterface {
                     }
                 }
             }
-
-            maxStorageSizeKB = State.st.getMaxDiskSpaceKB();
-            filledB = State.st.getFilledStorageB();
         }
 
+        long maxStorageSizeKB = State.st.getMaxDiskSpaceKB();
+        long filledB = State.st.getFilledStorageB();
+
         long filledKB = Math.round(filledB / 1000.0);
         return filesIInitiated
                 .append(chunksIStore)
                 .append("Storing ").append(filledKB == 0 ? (filledB + "B") : (filledKB + "KB"))
                 .append(" of a maximum of ")
-                .append(maxStorageSizeKB < 0 ? "infinite " : maxStorageSizeKB).append("KB.")
+                .append(maxStorageSizeKB < 0 ? "infinite " : maxStorageSizeKB).append("KB.\n")
+                .append("MC: ").append(this.MCSock.getBufferPool()).append("\n")
+                .append("MDB: ").append(this.MDBSock.getBufferPool()).append("\n")
+                .append("MDR: ").append(this.MDRSock.getBufferPool()).append("\n")
+                .append("Senders: ").append(SenderScheduler.getStats())
                 .toString();
     }
 
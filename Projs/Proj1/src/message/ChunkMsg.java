@@ -9,42 +9,46 @@ import java.nio.ByteBuffer;
 public class ChunkMsg extends Message {
     public static final String type = "CHUNK";
     private final int chunkNo;
-    private byte[] chunk;
+    private ByteBuffer chunk;
 
-    public ChunkMsg(String version, String id, String fileId, int chunkNo, byte[] chunk) {
+    public ChunkMsg(String version, String id, String fileId, int chunkNo, ByteBuffer chunk) {
         super(version, id, fileId);
-        this.header = version + " " +
-                type + " " +
-                id + " " +
-                fileId + " " +
-                chunkNo + " " +
-                Message.CRLF + Message.CRLF;
         this.chunkNo = chunkNo;
         this.chunk = chunk;
     }
 
+    public ChunkMsg(String version, String id, String fileId, int chunkNo, byte[] chunk) {
+        this(version, id, fileId, chunkNo, ByteBuffer.wrap(chunk));
+    }
+
     public ChunkMsg(String version, String id, String fileId, int chunkNo) {
         this(version, id, fileId, chunkNo, new byte[0]);
         try {
-            this.chunk = DigestFile.readChunk(fileId, chunkNo);
+            this.chunk = DigestFile.mapChunk(fileId, chunkNo);
         } catch (IOException e) {
             e.printStackTrace(); // TODO Fail if chunk isn't here
         }
     }
 
     public void setTCPAddr(String ip, int port) {
-        this.chunk = (ip + " " + port).getBytes();
+        this.chunk = ByteBuffer.wrap((ip + " " + port).getBytes());
     }
 
     public Pair<String, Integer> getTCP() {
-        String[] tcpInfo = new String(this.chunk).split(" ");
+        String[] tcpInfo = new String(this.getChunk()).split(" ");
         return new Pair<>(tcpInfo[0], Integer.parseInt(tcpInfo[1]));
     }
 
     public byte[] getChunk() {
-        return chunk;
+        return Message.toArray(this.chunk);
+    }
+
+    /* the chunk without copying it */
+    public ByteBuffer getChunkBuffer() {
+        return this.chunk.duplicate();
     }
 
+    @Override
     public int getChunkNo() {
         return chunkNo;
     }
@@ -52,10 +56,25 @@ public class ChunkMsg extends Message {
     @Override
     public byte[] getContent() {
         byte[] headerBytes = super.getContent();
-        byte[] bodyBytes = this.chunk;
 
-        return ByteBuffer.allocate(headerBytes.length + bodyBytes.length)
-                .put(headerBytes).put(bodyBytes).array();
+        return ByteBuffer.allocate(headerBytes.length + this.chunk.remaining())
+                .put(headerBytes).put(this.chunk.duplicate()).array();
+    }
+
+    @Override
+    public ByteBuffer[] getContentBuffers() {
+        // duplicate => the chunk can be sent more than once (and by more than one thread)
+        return new ByteBuffer[]{ByteBuffer.wrap(super.getContent()), this.chunk.duplicate()};
+    }
+
+    @Override
+    protected String buildHeader() {
+        return version + " " +
+                type + " " +
+                id + " " +
+                fileId + " " +
+                chunkNo + " " +
+                Message.CRLF + Message.CRLF;
     }
 
     @Override
@@ -68,6 +87,11 @@ public class ChunkMsg extends Message {
         return type;
     }
 
+    @Override
+    public boolean hasBody() {
+        return true;
+    }
+
     @Override
     public int getHeaderLen() {
         return 5;
@@ -7,7 +7,11 @@ public class DeleteMsg extends Message {
     public DeleteMsg(String version, String id, String fileId) {
         super(version, id, fileId);
         this.fileId = fileId;
-        this.header = version + " " +
+    }
+
+    @Override
+    protected String buildHeader() {
+        return version + " " +
                 type + " " +
                 id + " " +
                 this.fileId + " " +
@@ -7,12 +7,6 @@ public class GetChunkMsg extends Message {
 
     public GetChunkMsg(String version, String id, String fileId, int chunkNo) {
         super(version, id, fileId);
-        this.header = version + " " +
-                type + " " +
-                id + " " +
-                fileId + " " +
-                chunkNo + " " +
-                Message.CRLF + Message.CRLF;
         this.fileId = fileId;
         this.chunkNo = chunkNo;
     }
@@ -21,13 +15,19 @@ public class GetChunkMsg extends Message {
         return fileId;
     }
 
-    public Integer getChunkNo() {
+    @Override
+    public int getChunkNo() {
         return chunkNo;
     }
 
     @Override
-    public byte[] getContent() {
-        return header.getBytes();
+    protected String buildHeader() {
+        return version + " " +
+                type + " " +
+                id + " " +
+                fileId + " " +
+                chunkNo + " " +
+                Message.CRLF + Message.CRLF;
     }
 
     @Override
@@ -1,5 +1,7 @@
 package message;
 
+import java.nio.ByteBuffer;
+
 public abstract class Message {
     public static final String type = "CHUNK";
     public static String CRLF = String.valueOf((char) 0xD) + ((char) 0xA);
@@ -9,23 +11,36 @@ public abstract class Message {
     public static int fileField = 3;
     public static int chunkField = 4;
     public static int replicationField = 5;
+    public static final int NO_CHUNK = -1;
 
-    protected String header;
+    // built the first time the message is sent (received messages never need it)
+    private String header;
     protected String version;
     protected String id;
     protected String fileId;
 
     public Message(String version, String id, String fileId) {
-        this.header = version + " " +
-                type + " " +
-                id + " " +
-                fileId + " " +
-                Message.CRLF + Message.CRLF;
+        this.header = null;
         this.version = version;
         this.id = id;
         this.fileId = fileId;
     }
 
+    protected String buildHeader() {
+        return version + " " +
+                this.getType() + " " +
+                id + " " +
+                fileId + " " +
+                Message.CRLF + Message.CRLF;
+    }
+
+    protected String getHeader() {
+        // racing threads build the same string, so there's no need to lock
+        if (this.header == null)
+            this.header = this.buildHeader();
+        return this.header;
+    }
+
     public String getVersion() {
         return version;
     }
@@ -36,15 +51,41 @@ public abstract class Message {
 
     public abstract int getHeaderLen();
 
+    /* messages without a body can be sent in batches (see SockThread.send) */
+    public boolean hasBody() {
+        return false;
+    }
+
     public String getFileId() {
         return fileId;
     }
 
+    /* the chunk the message is about. NO_CHUNK for messages about whole files */
+    public int getChunkNo() {
+        return NO_CHUNK;
+    }
+
     public byte[] getContent() {
-        return header.getBytes();
+        return this.getHeader().getBytes();
+    }
+
+    /* the message's content split in parts (header and body), to be sent with a gathering write */
+    public ByteBuffer[] getContentBuffers() {
+        return new ByteBuffer[]{ByteBuffer.wrap(this.getContent())};
     }
 
     public String getSenderId() {
         return this.id;
     }
+
+    /* bytes of a message body (only copies when the buffer isn't backed by an array of the exact size) */
+    static byte[] toArray(ByteBuffer buf) {
+        if (buf.hasArray() && buf.arrayOffset() == 0 && buf.position() == 0 &&
+                buf.remaining() == buf.array().length)
+            return buf.array();
+
+        byte[] ret = new byte[buf.remaining()];
+        buf.duplicate().get(ret);
+        return ret;
+    }
 }
@@ -1,65 +1,88 @@
 package message;
 
-import static java.lang.Integer.parseInt;
-
 public class MessageCreator {
+    private static final String[] TYPES = {PutChunkMsg.type, StoredMsg.type, GetChunkMsg.type, ChunkMsg.type,
+            DeleteMsg.type, RemovedMsg.type, IDeletedMsg.type};
+    private static final byte[][] TYPE_BYTES = toBytes(TYPES);
+    private static final String[] VERSIONS = {"1.0", "2.0"};
+    private static final byte[][] VERSION_BYTES = toBytes(VERSIONS);
+
     final String protocolVersion;
 
     public MessageCreator(String protocolVersion) {
         this.protocolVersion = protocolVersion;
     }
 
-    public Message createMessage(String[] header, byte[] body) throws NoSuchMessage {
+    private static byte[][] toBytes(String[] strings) {
+        byte[][] ret = new byte[strings.length][];
+        for (int i = 0; i < strings.length; ++i)
+            ret[i] = strings[i].getBytes();
+        return ret;
+    }
+
+    /* returns the constant for the field's value, so the known values don't get a new String every message */
+    private static String getKnownString(MessageHeader header, int field, String[] known, byte[][] knownBytes) {
+        for (int i = 0; i < known.length; ++i) {
+            if (header.fieldEquals(field, knownBytes[i]))
+                return known[i];
+        }
+        return null;
+    }
+
+    public Message createMessage(MessageHeader header) throws NoSuchMessage {
+        String type = getKnownString(header, Message.typeField, TYPES, TYPE_BYTES);
+        if (type == null)
+            throw new NoSuchMessage(header.getFieldCount() > Message.typeField ?
+                    header.getString(Message.typeField) : "");
+
+        String version = getKnownString(header, Message.versionField, VERSIONS, VERSION_BYTES);
+        if (version == null) version = header.getString(Message.versionField);
+
+        try {
+            return this.createMessage(type, version, header);
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
+            throw new NoSuchMessage(type, e.getMessage());
+        }
+    }
+
+    private Message createMessage(String type, String version, MessageHeader header) {
+        String id = header.getString(Message.idField);
+        String fileId = header.getString(Message.fileField);
         Message res = null;
-        switch (header[Message.typeField]) {
+        switch (type) {
             // Backup Subprotocol
             case (PutChunkMsg.type):
-                res = new PutChunkMsg(header[Message.versionField],
-                        header[Message.idField],
-                        header[Message.fileField],
-                        parseInt(header[Message.chunkField]),
-                        parseInt(header[Message.replicationField]),
-                        body);
+                res = new PutChunkMsg(version, id, fileId,
+                        header.getInt(Message.chunkField),
+                        header.getInt(Message.replicationField),
+                        header.getBody());
                 break;
             case (StoredMsg.type):
-                res = new StoredMsg(header[Message.versionField],
-                        header[Message.idField],
-                        header[Message.fileField],
-                        parseInt(header[Message.chunkField]));
+                res = new StoredMsg(version, id, fileId,
+                        header.getInt(Message.chunkField));
                 break;
             // Restore Subprotocol
             case (GetChunkMsg.type):
-                res = new GetChunkMsg(header[Message.versionField],
-                        header[Message.idField],
-                        header[Message.fileField],
-                        parseInt(header[Message.chunkField]));
+                res = new GetChunkMsg(version, id, fileId,
+                        header.getInt(Message.chunkField));
                 break;
             case (ChunkMsg.type):
-                res = new ChunkMsg(header[Message.versionField], header[Message.idField],
-                        header[Message.fileField],
-                        parseInt(header[Message.chunkField]),
-                        body);
+                res = new ChunkMsg(version, id, fileId,
+                        header.getInt(Message.chunkField),
+                        header.getBody());
                 break;
             // File deletion Subprotocol
             case (DeleteMsg.type):
-                res = new DeleteMsg(header[Message.versionField],
-                        header[Message.idField],
-                        header[Message.fileField]);
+                res = new DeleteMsg(version, id, fileId);
                 break;
             // Space reclaim Subprotocol
             case (RemovedMsg.type):
-                res = new RemovedMsg(header[Message.versionField],
-                        header[Message.idField],
-                        header[Message.fileField],
-                        parseInt(header[Message.chunkField]));
+                res = new RemovedMsg(version, id, fileId,
+                        header.getInt(Message.chunkField));
                 break;
             case (IDeletedMsg.type):
-                res = new IDeletedMsg(header[Message.versionField],
-                        header[Message.idField],
-                        header[Message.fileField]);
+                res = new IDeletedMsg(version, id, fileId);
                 break;
-            default:
-                throw new NoSuchMessage(header[Message.typeField]);
         }
 
         return res;
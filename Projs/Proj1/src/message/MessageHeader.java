@@ -0,0 +1,109 @@
+package message;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/*
+ * A message's header, parsed straight from the received bytes. The fields are kept as offsets into the packet and
+ * are only turned into Strings/ints when asked for, so messages that get dropped (e.g.: our own) cost no allocations.
+ * The body is a slice of the packet. Instances are reused between packets (see parse).
+ */
+public class MessageHeader {
+    private static final int MAX_FIELDS = 6;
+
+    private final int[] fieldStart;
+    private final int[] fieldEnd;
+    private byte[] data;
+    private int fieldCnt;
+    private int bodyStart;
+    private int end;
+
+    public MessageHeader() {
+        this.fieldStart = new int[MAX_FIELDS];
+        this.fieldEnd = new int[MAX_FIELDS];
+    }
+
+    /* <Version> <MessageType> <SenderId> <FileId> <ChunkNo> <ReplicationDeg> <CRLF><CRLF><Body>
+     * returns false if the packet has no header */
+    public boolean parse(byte[] data, int offset, int length) {
+        this.data = data;
+        this.end = offset + length;
+        this.fieldCnt = 0;
+
+        int i = offset;
+        while (i < this.end - 1 && !isCRLF(i)) {
+            if (data[i] == ' ') {
+                ++i;
+                continue;
+            }
+            int start = i;
+            while (i < this.end && data[i] != ' ' && !isCRLF(i))
+                ++i;
+            if (this.fieldCnt < MAX_FIELDS) {
+                this.fieldStart[this.fieldCnt] = start;
+                this.fieldEnd[this.fieldCnt] = i;
+                ++this.fieldCnt;
+            }
+        }
+        if (i >= this.end - 1) return false;
+
+        // the body comes after the second CRLF
+        for (i += 2; i < this.end - 1; ++i) {
+            if (isCRLF(i)) {
+                this.bodyStart = i + 2;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isCRLF(int i) {
+        return this.data[i] == 0xD && i + 1 < this.end && this.data[i + 1] == 0xA;
+    }
+
+    public int getFieldCount() {
+        return this.fieldCnt;
+    }
+
+    public boolean fieldEquals(int field, byte[] value) {
+        if (field >= this.fieldCnt) return false;
+        int len = this.fieldEnd[field] - this.fieldStart[field];
+        if (len != value.length) return false;
+        for (int i = 0; i < len; ++i) {
+            if (this.data[this.fieldStart[field] + i] != value[i])
+                return false;
+        }
+        return true;
+    }
+
+    public String getString(int field) {
+        Objects.checkIndex(field, this.fieldCnt);
+        return new String(this.data, this.fieldStart[field], this.fieldEnd[field] - this.fieldStart[field],
+                StandardCharsets.US_ASCII);
+    }
+
+    public int getInt(int field) {
+        Objects.checkIndex(field, this.fieldCnt);
+        int start = this.fieldStart[field], fieldEnd = this.fieldEnd[field];
+        if (start == fieldEnd || fieldEnd - start > 9)  // 9 digits always fit in an int
+            throw new NumberFormatException("Bad number in header field " + field);
+        int ret = 0;
+        for (int i = start; i < fieldEnd; ++i) {
+            int digit = this.data[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("Bad number in header field " + field);
+            ret = ret * 10 + digit;
+        }
+        return ret;
+    }
+
+    public int getBodyOffset() {
+        return this.bodyStart;
+    }
+
+    /* the body isn't copied: it is only valid while the packet's buffer is */
+    public ByteBuffer getBody() {
+        return ByteBuffer.wrap(this.data, this.bodyStart, this.end - this.bodyStart).slice();
+    }
+}
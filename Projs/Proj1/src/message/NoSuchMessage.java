@@ -4,4 +4,8 @@ public class NoSuchMessage extends Exception {
     NoSuchMessage(String type) {
         super("No such message with type " + type + " exists");
     }
+
+    NoSuchMessage(String type, String reason) {
+        super("Malformed " + type + " message: " + reason);
+    }
 }
@@ -6,33 +6,40 @@ public class PutChunkMsg extends Message {
     public static final String type = "PUTCHUNK";
     private final Integer chunkNo;
     private final Integer replication;
-    private final byte[] chunk;
+    private final ByteBuffer chunk;
 
-    public PutChunkMsg(String version, String id, String fileId, int chunkNo, int replication, byte[] chunk) {
+    public PutChunkMsg(String version, String id, String fileId, int chunkNo, int replication, ByteBuffer chunk) {
         super(version, id, fileId);
-        this.header = version + " " +
-                type + " " +
-                id + " " +
-                fileId + " " +
-                chunkNo + " " +
-                replication + " " +
-                Message.CRLF + Message.CRLF;
         this.fileId = fileId;
         this.chunkNo = chunkNo;
         this.replication = replication;
         this.chunk = chunk;
     }
 
+    public PutChunkMsg(String version, String id, String fileId, int chunkNo, int replication, byte[] chunk) {
+        this(version, id, fileId, chunkNo, replication, ByteBuffer.wrap(chunk));
+    }
+
     public String getFileId() {
         return fileId;
     }
 
+    @Override
     public int getChunkNo() {
         return chunkNo;
     }
 
     public byte[] getChunk() {
-        return this.chunk;
+        return Message.toArray(this.chunk);
+    }
+
+    /* the chunk without copying it */
+    public ByteBuffer getChunkBuffer() {
+        return this.chunk.duplicate();
+    }
+
+    public int getChunkSize() {
+        return this.chunk.remaining();
     }
 
     public int getReplication() {
@@ -42,8 +49,25 @@ public class PutChunkMsg extends Message {
     @Override
     public byte[] getContent() {
         byte[] packetContent = super.getContent();
-        return ByteBuffer.allocate(packetContent.length + this.chunk.length)
-                .put(packetContent).put(this.chunk).array();
+        return ByteBuffer.allocate(packetContent.length + this.chunk.remaining())
+                .put(packetContent).put(this.chunk.duplicate()).array();
+    }
+
+    @Override
+    public ByteBuffer[] getContentBuffers() {
+        // duplicate => the chunk can be retransmitted (and by more than one thread)
+        return new ByteBuffer[]{ByteBuffer.wrap(super.getContent()), this.chunk.duplicate()};
+    }
+
+    @Override
+    protected String buildHeader() {
+        return version + " " +
+                type + " " +
+                id + " " +
+                fileId + " " +
+                chunkNo + " " +
+                replication + " " +
+                Message.CRLF + Message.CRLF;
     }
 
     @Override
@@ -56,6 +80,11 @@ public class PutChunkMsg extends Message {
         return type;
     }
 
+    @Override
+    public boolean hasBody() {
+        return true;
+    }
+
     @Override
     public int getHeaderLen() {
         return 6;
@@ -6,17 +6,22 @@ public class RemovedMsg extends Message {
 
     public RemovedMsg(String version, String id, String fileId, int chunkNo) {
         super(version, id, fileId);
-        this.header = version + " " +
+        this.chunkNo = chunkNo;
+    }
+
+    @Override
+    public int getChunkNo() {
+        return chunkNo;
+    }
+
+    @Override
+    protected String buildHeader() {
+        return version + " " +
                 type + " " +
                 id + " " +
                 fileId + " " +
                 chunkNo + " " +
                 Message.CRLF + Message.CRLF;
-        this.chunkNo = chunkNo;
-    }
-
-    public Integer getChunkNo() {
-        return chunkNo;
     }
 
     @Override
@@ -7,22 +7,26 @@ public class StoredMsg extends Message {
 
     public StoredMsg(String version, String id, String fileId, int chunkNo) {
         super(version, id, fileId);
-        this.header = version + " " +
-                type + " " +
-                id + " " +
-                fileId + " " +
-                chunkNo + " " +
-                Message.CRLF + Message.CRLF;
-
         this.fileId = fileId;
         this.chunkNo = chunkNo;
     }
 
-    public Integer getChunkNo() {
+    @Override
+    public int getChunkNo() {
         return chunkNo;
     }
 
 
+    @Override
+    protected String buildHeader() {
+        return version + " " +
+                type + " " +
+                id + " " +
+                fileId + " " +
+                chunkNo + " " +
+                Message.CRLF + Message.CRLF;
+    }
+
     @Override
     public String getSockName() {
         return "MC";
@@ -14,35 +14,22 @@ public class ChunkSender extends MessageSender<ChunkMsg> {
         this.chunkAlreadySent = false;
     }
 
-    private boolean refersToSameChunk(Message message) {
-        if (message.getType().equals(ChunkMsg.type) &&
-                message.getFileId().equals(this.message.getFileId())) {
-            return ((ChunkMsg) message).getChunkNo() == this.message.getChunkNo();
-        }
-        return false;
-    }
-
+    /* only the CHUNKs of our chunk get here */
     @Override
     public void notify(Message message) {
-        if (refersToSameChunk(message)) {
-            chunkAlreadySent = true;
-            this.xau();
-        }
+        chunkAlreadySent = true;
+        this.xau();
     }
 
     @Override
     public void run() {
         Random random = new Random();
         int timeout = random.nextInt(MAX_TIMEOUT + 1);
-        new java.util.Timer().schedule(
-                new java.util.TimerTask() {
-                    @Override
-                    public void run() {
-                        if (!chunkAlreadySent)
-                            ChunkSender.super.send();
-                    }
-                },
-                timeout
-        );
+        SenderScheduler.schedule(() -> {
+            if (!chunkAlreadySent) {
+                super.send();
+                this.xau();
+            }
+        }, timeout);
     }
 }
@@ -4,10 +4,12 @@ import file.DigestFile;
 import message.ChunkMsg;
 import message.Message;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -15,98 +17,96 @@ public class ChunkTCPSender extends MessageSender<ChunkMsg> {
     private final static int MAX_DELAY_TIMEOUT = 400;
     private final static int MAX_TIMEOUT_TCP = 10000;
     private final AtomicBoolean chunkAlreadySent;
-    private byte[] chunk;
 
     public ChunkTCPSender(SockThread sockThread, ChunkMsg message, MessageHandler handler) {
         super(sockThread, message, handler);
         this.chunkAlreadySent = new AtomicBoolean(false);
-        try {
-            this.chunk = DigestFile.readChunk(message.getFileId(), message.getChunkNo());
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    private boolean refersToSameChunk(Message message) {
-        if (message.getType().equals(ChunkMsg.type) &&
-                message.getFileId().equals(this.message.getFileId())) {
-            return ((ChunkMsg) message).getChunkNo() == this.message.getChunkNo();
-        }
-        return false;
     }
 
+    /* only the CHUNKs of our chunk get here */
     @Override
     public void notify(Message message) {
-        if (refersToSameChunk(message)) {
-            this.chunkAlreadySent.set(true);
-            this.xau();
+        this.chunkAlreadySent.set(true);
+        this.xau();
+    }
+
+    /* waits (at most MAX_TIMEOUT_TCP ms) for someone to connect. null on timeout */
+    private SocketChannel accept(ServerSocketChannel serverSocket) throws IOException {
+        serverSocket.configureBlocking(false);
+        try (Selector selector = Selector.open()) {
+            serverSocket.register(selector, SelectionKey.OP_ACCEPT);
+            if (selector.select(MAX_TIMEOUT_TCP) == 0)
+                return null;
         }
+        SocketChannel socket = serverSocket.accept();
+        if (socket != null)
+            socket.configureBlocking(true);
+        return socket;
     }
 
     @Override
     public void run() {
         Random random = new Random();
         int timeout = random.nextInt(MAX_DELAY_TIMEOUT + 1);
-        new java.util.Timer().schedule(
-                new java.util.TimerTask() {
-                    @Override
-                    public void run() {
-                        // Check if a connection was already opened
-                        if (ChunkTCPSender.this.chunkAlreadySent.get())
-                            return;
-                        // Create Socket
-                        ServerSocket serverSocket;
-                        Socket socket;
-                        try {
-                            serverSocket = new ServerSocket(0);
-                            serverSocket.setSoTimeout(MAX_TIMEOUT_TCP);
-                        } catch (IOException e) {
-                            System.err.println("Could not create socket to listen to (ChunkTCP)");
-                            return;
-                        }
-                        // If a connection was already created while we opened socket close it and go bye
-                        if (ChunkTCPSender.this.chunkAlreadySent.get()) {
-                            try {
-                                serverSocket.close();
-                            } catch (IOException e) {
-                                System.err.println("Failed to close socket (ChunkTCP)");
-                            }
-                            return;
-                        }
-                        // Send ChunkTCP Message with the respective ip and port
-                        String ip = serverSocket.getInetAddress().getHostAddress();
-                        int port = serverSocket.getLocalPort();
-                        ChunkTCPSender.super.message.setTCPAddr(ip, port);
-                        ChunkTCPSender.super.send();
-                        // Wait for someone to connect
-                        try {
-                            socket = serverSocket.accept();
-                        } catch (IOException e) {
-                            // System.err.println("Timed out while waiting for answer (ChunkTCP)");
-                            try {
-                                serverSocket.close();
-                            } catch (IOException ioException) {
-                                System.err.println("Failed to close socket (ChunkTCP)");
-                            }
-                            ChunkTCPSender.this.xau();
-                            return;
-                        }
-                        try {
-                            DataOutputStream outputStream = new DataOutputStream(socket.getOutputStream());
-                            outputStream.write(ChunkTCPSender.this.chunk);
-                        } catch (IOException e) {
-                            System.err.println("Failed to send chunk message (ChunkTCP)");
-                        }
-                        ChunkTCPSender.this.xau();
-                        try {
-                            socket.close();
-                            serverSocket.close();
-                        } catch (IOException ioException) {
-                            System.err.println("Failed to close socket (ChunkTCP)");
-                        }
-                    }
-                },
-                timeout
-        );
+        SenderScheduler.scheduleBlocking(() -> {
+            // Check if a connection was already opened
+            if (this.chunkAlreadySent.get())
+                return;
+            // Create Socket
+            ServerSocketChannel serverSocket;
+            SocketChannel socket;
+            try {
+                serverSocket = ServerSocketChannel.open();
+                serverSocket.bind(new InetSocketAddress(0));
+            } catch (IOException e) {
+                System.err.println("Could not create socket to listen to (ChunkTCP)");
+                this.xau();
+                return;
+            }
+            // If a connection was already created while we opened socket close it and go bye
+            if (this.chunkAlreadySent.get()) {
+                try {
+                    serverSocket.close();
+                } catch (IOException e) {
+                    System.err.println("Failed to close socket (ChunkTCP)");
+                }
+                return;
+            }
+            // Send ChunkTCP Message with the respective ip and port
+            String ip = serverSocket.socket().getInetAddress().getHostAddress();
+            int port = serverSocket.socket().getLocalPort();
+            super.message.setTCPAddr(ip, port);
+            super.send();
+            // Wait for someone to connect
+            try {
+                socket = this.accept(serverSocket);
+            } catch (IOException e) {
+                socket = null;
+            }
+            if (socket == null) {
+                // System.err.println("Timed out while waiting for answer (ChunkTCP)");
+                try {
+                    serverSocket.close();
+                } catch (IOException ioException) {
+                    System.err.println("Failed to close socket (ChunkTCP)");
+                }
+                this.xau();
+                return;
+            }
+            try {
+                // the chunk goes from the file system to the socket without passing through our heap
+                DigestFile.transferChunk(super.message.getFileId(),
+                        super.message.getChunkNo(), socket);
+            } catch (IOException e) {
+                System.err.println("Failed to send chunk message (ChunkTCP)");
+            }
+            this.xau();
+            try {
+                socket.close();
+                serverSocket.close();
+            } catch (IOException ioException) {
+                System.err.println("Failed to close socket (ChunkTCP)");
+            }
+        }, timeout);
     }
 }
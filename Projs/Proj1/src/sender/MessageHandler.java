@@ -5,21 +5,28 @@ import message.*;
 import state.State;
 
 import java.io.IOException;
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class MessageHandler {
+    public static final int ANY_CHUNK = -2;
     private final String selfID;
+    private final byte[] selfIDBytes;
     private final String protocolVersion;
     private final MessageCreator messageCreator;
     private final SockThread MCSock;
     private final SockThread MDBSock;
     private final SockThread MDRSock;
-    private final ConcurrentHashMap<Observer, Boolean> observers;
+    // observers indexed by what they are waiting for
+    private final ConcurrentHashMap<ObserverKey, Set<Observer>> observers;
+    // one per handler thread: parsing a header allocates nothing
+    private final ThreadLocal<MessageHeader> headers;
 
     public MessageHandler(String selfID, String protocolVersion, SockThread MCSock, SockThread MDBSock, SockThread MDRSock) {
         this.selfID = selfID;
+        this.selfIDBytes = selfID.getBytes();
         this.protocolVersion = protocolVersion;
         this.messageCreator = new MessageCreator(protocolVersion);
         this.MCSock = MCSock;
@@ -29,19 +36,61 @@ public class MessageHandler {
         this.MDBSock.setHandler(this);
         this.MDRSock.setHandler(this);
         this.observers = new ConcurrentHashMap<>();
+        this.headers = ThreadLocal.withInitial(MessageHeader::new);
     }
 
-    public void addObserver(Observer obs) {
-        this.observers.put(obs, false);
+    /* what an observer is waiting for. chunkNo == ANY_CHUNK => every chunk of the file */
+    private static class ObserverKey {
+        final String type;
+        final String fileId;
+        final int chunkNo;
+
+        ObserverKey(String type, String fileId, int chunkNo) {
+            this.type = type;
+            this.fileId = fileId;
+            this.chunkNo = chunkNo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ObserverKey)) return false;
+            ObserverKey that = (ObserverKey) o;
+            return this.chunkNo == that.chunkNo && this.type.equals(that.type) && this.fileId.equals(that.fileId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(this.type, this.fileId, this.chunkNo);
+        }
+    }
+
+    /* the observer is only notified of the messages of the given type about the given chunk */
+    public void addObserver(Observer obs, String type, String fileId, int chunkNo) {
+        this.observers.compute(new ObserverKey(type, fileId, chunkNo), (key, set) -> {
+            if (set == null) set = ConcurrentHashMap.newKeySet();
+            set.add(obs);
+            return set;
+        });
     }
 
-    public void rmObserver(Observer obs) {
-        this.observers.remove(obs);
+    public void rmObserver(Observer obs, String type, String fileId, int chunkNo) {
+        this.observers.computeIfPresent(new ObserverKey(type, fileId, chunkNo), (key, set) -> {
+            set.remove(obs);
+            return set.isEmpty() ? null : set;
+        });
+    }
+
+    private void notifyObservers(ObserverKey key, Message message) {
+        Set<Observer> set = this.observers.get(key);
+        if (set == null) return;
+        for (Observer obs : set)
+            obs.notify(message);
     }
 
     private void handlePutChunkMsg(PutChunkMsg message) {
         boolean iStoredTheChunk = false;
-        synchronized (State.st) {
+        synchronized (State.st.getFileLock(message.getFileId())) {
             // do not handle files we initiated the backup of
             if (State.st.isInitiator(message.getFileId())) return;
 
@@ -51,25 +100,18 @@ public class MessageHandler {
 
             // do not store duplicated chunks or if we surpass storage space
             if (!State.st.amIStoringChunk(message.getFileId(), message.getChunkNo())) {
-                if (State.st.updateStorageSize(message.getChunk().length)) {
+                if (State.st.reserveStorage(message.getChunkSize())) {
                     try {
-                        DigestFile.writeChunk(message.getFileId(), message.getChunkNo(),
-                                message.getChunk(), message.getChunk().length);
+                        DigestFile.writeChunk(message.getFileId(), message.getChunkNo(), message.getChunkBuffer());
                     } catch (IOException e) {
                         e.printStackTrace();
-                        State.st.updateStorageSize(-message.getChunk().length);
+                        State.st.releaseStorage(message.getChunkSize());
                     }
 
                     // Add self to map Entry
                     State.st.incrementChunkDeg(message.getFileId(), message.getChunkNo(), this.selfID);
                     State.st.setAmStoringChunk(message.getFileId(), message.getChunkNo(), true);
                     iStoredTheChunk = true;
-
-                    // unsub MDB when storage is full
-                    if (this.protocolVersion.equals("2.0")) {
-                        if (State.st.isStorageFull()) this.MDBSock.leave();
-                        else this.MDBSock.join();
-                    }
                 }
             } else {
                 iStoredTheChunk = true;
@@ -86,23 +128,15 @@ public class MessageHandler {
     }
 
     private void handleStoredMsg(StoredMsg message) {
-        synchronized (State.st) {
-            State.st.incrementChunkDeg(message.getFileId(), message.getChunkNo(), message.getSenderId());
-        }
+        State.st.incrementChunkDeg(message.getFileId(), message.getChunkNo(), message.getSenderId());
     }
 
     private void handleDeleteMsg(DeleteMsg message) {
         boolean sendIDeleted;
-        synchronized (State.st) {
+        synchronized (State.st.getFileLock(message.getFileId())) {
             // delete the file on the file system
             // also updates state entry and space filled
             sendIDeleted = DigestFile.deleteFile(message.getFileId());
-
-            if (this.protocolVersion.equals("2.0")) {
-                // unsub MDB when storage is not full
-                if (State.st.isStorageFull()) this.MDBSock.leave();
-                else this.MDBSock.join();
-            }
         }
 
         // send IDELETED when we are 2.0 and the DELETE was 2.0
@@ -115,18 +149,13 @@ public class MessageHandler {
 
     private void handleIDeletedMsg(IDeletedMsg message) {
         // only handle IDELETED messages if we are 2.0
-        if (this.protocolVersion.equals("2.0")) {
-            synchronized (State.st) {
-                State.st.removeUndeletedPair(message.getSenderId(), message.getFileId());
-            }
-        }
+        if (this.protocolVersion.equals("2.0"))
+            State.st.removeUndeletedPair(message.getSenderId(), message.getFileId());
     }
 
     private void handleGetChunkMsg(GetChunkMsg message) {
-        synchronized (State.st) {
-            if (!State.st.amIStoringChunk(message.getFileId(), message.getChunkNo()))
-                return;
-        }
+        if (!State.st.amIStoringChunk(message.getFileId(), message.getChunkNo()))
+            return;
 
         ChunkMsg response = new ChunkMsg(this.protocolVersion, this.selfID,
                 message.getFileId(), message.getChunkNo());
@@ -142,7 +171,7 @@ public class MessageHandler {
     private void handleRemovedMsg(RemovedMsg message) {
         int repDegree;
         boolean amInitiator;
-        synchronized (State.st) {
+        synchronized (State.st.getFileLock(message.getFileId())) {
             State.st.decrementChunkDeg(message.getFileId(), message.getChunkNo(), message.getSenderId());
             if (State.st.isChunkOk(message.getFileId(), message.getChunkNo()))
                 return;
@@ -155,12 +184,12 @@ public class MessageHandler {
         }
 
         try {
-            byte[] chunk;
+            ByteBuffer chunk;
             if (amInitiator) {
                 chunk = DigestFile.divideFileChunk(State.st.getFileInfo(message.getFileId()).getFilePath(),
                         message.getChunkNo());
             } else {
-                chunk = DigestFile.readChunk(message.getFileId(), message.getChunkNo());
+                chunk = DigestFile.mapChunk(message.getFileId(), message.getChunkNo());
             }
 
             PutChunkMsg putChunkMsg = new PutChunkMsg(this.protocolVersion, this.selfID,
@@ -174,37 +203,39 @@ public class MessageHandler {
         }
     }
 
+    public void handleMessage(String sockName, byte[] receivedData, int length) {
+        // a datagram can carry a batch of messages without body, one after the other (see SockThread.send)
+        int offset = 0;
+        while (offset < length)
+            offset = this.handleMessage(sockName, receivedData, offset, length);
+    }
+
     // TODO verify message came from the socket?
-    public void handleMessage(String sockName, byte[] receivedData) {
-        int crlfCount = 0;
-        int headerCutoff;
-        for (headerCutoff = 0; headerCutoff < receivedData.length - 1; ++headerCutoff) {
-            if (receivedData[headerCutoff] == 0xD && receivedData[headerCutoff + 1] == 0xA)
-                ++crlfCount;
-            if (crlfCount == 2)
-                break;
+    /* handles the message starting at offset. returns where the next message of the datagram starts */
+    private int handleMessage(String sockName, byte[] receivedData, int offset, int end) {
+        MessageHeader header = this.headers.get();
+        if (!header.parse(receivedData, offset, end - offset) || header.getFieldCount() <= Message.idField) {
+            System.err.println("Skipping message without a valid header.");
+            return end;
         }
 
-        final String[] header = new String(receivedData, 0, headerCutoff - 2).split(" ");
-        byte[] body = (receivedData.length <= headerCutoff + 2) ?
-                new byte[0] :
-                Arrays.copyOfRange(receivedData, headerCutoff + 2, receivedData.length);
-
-        // skip our own messages (multicast)
-        if (header[Message.idField].equals(this.selfID)) {
+        // skip our own messages (multicast). checked before anything is allocated for them
+        // (a batch only has messages from the same peer)
+        if (header.fieldEquals(Message.idField, this.selfIDBytes)) {
             // System.out.println("We were the ones that sent this message. Skipping...");
-            return;
+            return end;
         }
 
         // construct the reply
         Message message;
         try {
-            message = messageCreator.createMessage(header, body);
+            message = messageCreator.createMessage(header);
         } catch (NoSuchMessage noSuchMessage) {
-            System.err.println("No Such message " + header[Message.typeField]);
-            return;
+            System.err.println(noSuchMessage.getMessage());
+            return end;
         }
-        assert message != null;
+        // what comes after a message without body is the next message of the batch
+        int next = message.hasBody() ? end : header.getBodyOffset();
 
         // skip message that came from the wrong socket.
         if (!message.getSockName().equals(sockName)) {
@@ -212,10 +243,10 @@ public class MessageHandler {
         }
 
         System.out.println("\tReceived: " + message);
-        // notify observers
-        for (Observer obs : this.observers.keySet()) {
-            obs.notify(message);
-        }
+        // notify observers (the ones waiting for this chunk and the ones waiting for any chunk of the file)
+        this.notifyObservers(new ObserverKey(message.getType(), message.getFileId(), message.getChunkNo()), message);
+        if (message.getChunkNo() != ANY_CHUNK)
+            this.notifyObservers(new ObserverKey(message.getType(), message.getFileId(), ANY_CHUNK), message);
 
         switch (message.getType()) {
             case PutChunkMsg.type:
@@ -259,5 +290,7 @@ public class MessageHandler {
                 State.st.ignorePeerDeletedFiles(message.getSenderId());
             }
         }
+
+        return next;
     }
 }
@@ -15,8 +15,9 @@ public abstract class MessageSender<T extends Message> implements Runnable, Obse
         this.message = message;
         this.success = new AtomicBoolean(false);
         this.handler = handler;
+        // senders are notified of the messages like theirs (same type, same chunk)
         if (wantNotifications)
-            this.handler.addObserver(this);
+            this.handler.addObserver(this, message.getType(), message.getFileId(), message.getChunkNo());
     }
 
     public MessageSender(SockThread sockThread, T message, MessageHandler handler) {
@@ -32,7 +33,7 @@ public abstract class MessageSender<T extends Message> implements Runnable, Obse
     }
 
     protected void xau() {
-        this.handler.rmObserver(this);
+        this.handler.rmObserver(this, this.message.getType(), this.message.getFileId(), this.message.getChunkNo());
     }
 
     protected void send() {
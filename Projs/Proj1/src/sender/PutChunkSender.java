@@ -7,26 +7,27 @@ import state.State;
 
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 public class PutChunkSender extends MessageSender<PutChunkMsg> {
     private static final int MAX_RETRANSMIT = 5;
     private static final long COLLECTION_INTERVAL = 1000; // in ms
-    // used to reschedule himself
-    private final ScheduledExecutorService threadPool = Executors.newSingleThreadScheduledExecutor();
+    // called once we stop retransmitting (either because the chunk is ok or we gave up)
+    private final Runnable onDone;
     private int i;
 
-    public PutChunkSender(SockThread sockThread, PutChunkMsg msg, MessageHandler handler) {
+    public PutChunkSender(SockThread sockThread, PutChunkMsg msg, MessageHandler handler, Runnable onDone) {
         super(sockThread, msg, handler, false);
+        this.onDone = onDone;
         this.i = 0;
     }
 
+    public PutChunkSender(SockThread sockThread, PutChunkMsg msg, MessageHandler handler) {
+        this(sockThread, msg, handler, () -> {});
+    }
+
     public void restart() {
         super.send();
-        this.threadPool.schedule(this,
-                (long) (COLLECTION_INTERVAL * Math.pow(2, this.i)), TimeUnit.MILLISECONDS);
+        SenderScheduler.schedule(this, (long) (COLLECTION_INTERVAL * Math.pow(2, this.i)));
     }
 
     @Override
@@ -38,11 +39,13 @@ public class PutChunkSender extends MessageSender<PutChunkMsg> {
     public void run() {
         if (State.st.isChunkOk(this.message.getFileId(), this.message.getChunkNo())) {
             this.success.set(true);
+            this.onDone.run();
             return;
         }
 
         ++this.i;
         if (this.i == MAX_RETRANSMIT) {
+            this.onDone.run();
             return;
         }
 
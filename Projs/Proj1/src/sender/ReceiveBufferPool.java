@@ -0,0 +1,95 @@
+package sender;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Ring of reusable receive buffers (one packet each). A buffer starts with one reference, taken by whoever acquired
+ * it; anyone else that keeps the packet's bytes around has to retain it. The last release puts it back in the ring.
+ * If the ring is empty (every buffer is still being handled) a new buffer is allocated, and buffers that don't fit
+ * back in the ring are left to the GC. The counters show how often that happens.
+ */
+public class ReceiveBufferPool {
+    private static final int POOL_SIZE = Integer.getInteger("receive.poolSize", 64);
+
+    private final int bufferSize;
+    private final ArrayBlockingQueue<Buffer> free;
+    private final AtomicLong allocations;
+    private final AtomicLong exhaustions;
+
+    public class Buffer {
+        private final byte[] data;
+        private final AtomicInteger refs;
+        private int length;
+
+        private Buffer() {
+            this.data = new byte[ReceiveBufferPool.this.bufferSize];
+            this.refs = new AtomicInteger(0);
+            this.length = 0;
+        }
+
+        public byte[] getData() {
+            return this.data;
+        }
+
+        public int getLength() {
+            return this.length;
+        }
+
+        public void setLength(int length) {
+            this.length = length;
+        }
+
+        public void retain() {
+            this.refs.incrementAndGet();
+        }
+
+        public void release() {
+            int left = this.refs.decrementAndGet();
+            if (left == 0)
+                ReceiveBufferPool.this.free.offer(this);
+            else if (left < 0)
+                throw new IllegalStateException("Receive buffer released too many times");
+        }
+    }
+
+    public ReceiveBufferPool(int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.free = new ArrayBlockingQueue<>(POOL_SIZE);
+        this.allocations = new AtomicLong(0);
+        this.exhaustions = new AtomicLong(0);
+    }
+
+    public Buffer acquire() {
+        Buffer buffer = this.free.poll();
+        if (buffer == null) {
+            // the first POOL_SIZE allocations fill the ring. after that, every allocation means it ran dry
+            if (this.allocations.incrementAndGet() > POOL_SIZE)
+                this.exhaustions.incrementAndGet();
+            buffer = new Buffer();
+        }
+        buffer.refs.set(1);
+        return buffer;
+    }
+
+    /* number of buffers allocated so far */
+    public long getAllocations() {
+        return this.allocations.get();
+    }
+
+    public long getAllocatedBytes() {
+        return this.allocations.get() * this.bufferSize;
+    }
+
+    /* number of times a buffer was needed but the ring was empty (after it was filled) */
+    public long getExhaustions() {
+        return this.exhaustions.get();
+    }
+
+    @Override
+    public String toString() {
+        return this.getAllocations() + " receive buffers allocated (" + this.getAllocatedBytes() + "B), " +
+                this.getExhaustions() + " times the pool was empty";
+    }
+}
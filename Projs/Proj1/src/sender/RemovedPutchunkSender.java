@@ -4,8 +4,6 @@ import message.Message;
 import message.PutChunkMsg;
 
 import java.util.Random;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RemovedPutchunkSender extends MessageSender<PutChunkMsg> {
@@ -40,16 +38,10 @@ public class RemovedPutchunkSender extends MessageSender<PutChunkMsg> {
     public void run() {
         Random random = new Random();
         int timeout = random.nextInt(MAX_TIMEOUT + 1);
-        new java.util.Timer().schedule(
-                new java.util.TimerTask() {
-                    @Override
-                    public void run() {
-                        if (!putchunkAlreadySent.get()) {
-                            putChunkSender.restart();
-                        }
-                    }
-                },
-                timeout
-        );
+        SenderScheduler.schedule(() -> {
+            if (!putchunkAlreadySent.get()) {
+                putChunkSender.restart();
+            }
+        }, timeout);
     }
 }
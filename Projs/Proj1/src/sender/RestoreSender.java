@@ -0,0 +1,226 @@
+package sender;
+
+import file.RestoreSink;
+import message.ChunkMsg;
+import message.GetChunkMsg;
+import message.Message;
+import utils.Pair;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Restores a file by keeping a window of GETCHUNKs in flight. A GETCHUNK is retransmitted when it times out, and
+ * the timeout follows the measured round trip time of the GETCHUNK/CHUNK exchanges (RFC 6298 style), doubling on
+ * each retransmission. Chunks are written to the sink as they arrive (in any order), straight from the packets.
+ */
+public class RestoreSender implements Observer {
+    private static final int WINDOW = Integer.getInteger("restore.window", 16);
+    private static final int MAX_RETRANSMIT = 5;
+    private static final long INITIAL_RTO = 1000;  // in ms
+    private static final long MIN_RTO = 200;  // in ms
+    private static final long MAX_RTO = 16000;  // in ms
+
+    private final SockThread sockThread;
+    private final MessageHandler handler;
+    private final String protocolVersion;
+    private final String selfId;
+    private final String fileId;
+    private final int chunkCount;
+    private final RestoreSink sink;
+
+    // everything below is guarded by this
+    private final Map<Integer, Request> outstanding;
+    private int nextToRequest;
+    private int failedChunk;
+    private IOException writeError;
+    // round trip time estimation (ms)
+    private double srtt;
+    private double rttVar;
+    private long rto;
+
+    private static class Request {
+        final int chunkNo;
+        long sentAt;
+        int retries;
+        ScheduledFuture<?> timeout;
+
+        Request(int chunkNo) {
+            this.chunkNo = chunkNo;
+            this.retries = 0;
+        }
+    }
+
+    public RestoreSender(SockThread sockThread, MessageHandler handler, String protocolVersion, String selfId,
+                         String fileId, int chunkCount, RestoreSink sink) {
+        this.sockThread = sockThread;
+        this.handler = handler;
+        this.protocolVersion = protocolVersion;
+        this.selfId = selfId;
+        this.fileId = fileId;
+        this.chunkCount = chunkCount;
+        this.sink = sink;
+        this.outstanding = new HashMap<>();
+        this.nextToRequest = 0;
+        this.failedChunk = -1;
+        this.writeError = null;
+        this.srtt = -1;
+        this.rttVar = 0;
+        this.rto = INITIAL_RTO;
+    }
+
+    /* restores the whole file. returns -1 on success or the number of the chunk that couldn't be restored */
+    public int run() throws IOException, InterruptedException {
+        this.handler.addObserver(this, ChunkMsg.type, this.fileId, MessageHandler.ANY_CHUNK);
+        try {
+            synchronized (this) {
+                this.fillWindow();
+                while (!this.isDone())
+                    this.wait();
+                if (this.writeError != null)
+                    throw this.writeError;
+                return this.failedChunk;
+            }
+        } finally {
+            this.handler.rmObserver(this, ChunkMsg.type, this.fileId, MessageHandler.ANY_CHUNK);
+            synchronized (this) {
+                for (Request request : this.outstanding.values())
+                    request.timeout.cancel(false);
+            }
+        }
+    }
+
+    private boolean isDone() {
+        return this.sink.isComplete() || this.failedChunk >= 0 || this.writeError != null;
+    }
+
+    private void fillWindow() {
+        while (this.nextToRequest < this.chunkCount && this.outstanding.size() < WINDOW) {
+            Request request = new Request(this.nextToRequest++);
+            this.outstanding.put(request.chunkNo, request);
+            this.send(request);
+        }
+    }
+
+    private void send(Request request) {
+        request.sentAt = System.nanoTime();
+        this.sockThread.send(new GetChunkMsg(this.protocolVersion, this.selfId, this.fileId, request.chunkNo));
+        request.timeout = SenderScheduler.schedule(() -> this.onTimeout(request), this.timeoutOf(request));
+    }
+
+    /* how long we wait for an answer to the request (ms) */
+    private synchronized long timeoutOf(Request request) {
+        return Math.min(this.rto << request.retries, MAX_RTO);
+    }
+
+    private synchronized void onTimeout(Request request) {
+        // the chunk arrived meanwhile
+        if (this.outstanding.get(request.chunkNo) != request || this.isDone()) return;
+
+        this.retransmit(request);
+    }
+
+    private void retransmit(Request request) {
+        if (++request.retries == MAX_RETRANSMIT) {
+            this.failedChunk = request.chunkNo;
+            this.notifyAll();
+            return;
+        }
+        this.send(request);
+    }
+
+    private void sampleRtt(long rttMs) {
+        if (this.srtt < 0) {
+            this.srtt = rttMs;
+            this.rttVar = rttMs / 2.0;
+        } else {
+            this.rttVar = 0.75 * this.rttVar + 0.25 * Math.abs(this.srtt - rttMs);
+            this.srtt = 0.875 * this.srtt + 0.125 * rttMs;
+        }
+        this.rto = Math.max(MIN_RTO, Math.min(MAX_RTO, (long) (this.srtt + 4 * this.rttVar)));
+    }
+
+    /* takes the request of the chunk (so no one else handles its CHUNKs). null if we aren't waiting for it */
+    private synchronized Request claim(int chunkNo) {
+        Request request = this.outstanding.remove(chunkNo);
+        if (request == null) return null;
+        request.timeout.cancel(false);
+        // only the exchanges that weren't retransmitted tell us the round trip time
+        if (request.retries == 0)
+            this.sampleRtt(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - request.sentAt));
+        return request;
+    }
+
+    private synchronized void written() {
+        if (this.isDone())
+            this.notifyAll();
+        else
+            this.fillWindow();
+    }
+
+    private synchronized void failed(IOException e) {
+        this.writeError = e;
+        this.notifyAll();
+    }
+
+    /* the chunk couldn't be fetched: ask for it again */
+    private synchronized void retry(Request request) {
+        if (this.isDone()) return;
+        this.outstanding.put(request.chunkNo, request);
+        this.retransmit(request);
+    }
+
+    /* 2.0: the chunk comes over TCP. runs on a blocking thread (the handlers can't wait for it), and the request isn't
+     * outstanding anymore, so its connection has its own timeouts */
+    private void fetchTCP(Request request, Pair<String, Integer> tcpInfo) {
+        int timeout = (int) this.timeoutOf(request);
+        byte[] chunk;
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(tcpInfo.p1, tcpInfo.p2), timeout);
+            socket.setSoTimeout(timeout);
+            chunk = new DataInputStream(socket.getInputStream()).readAllBytes();
+        } catch (IOException e) {
+            System.err.println("Failed to read from TCP socket (GetChunkTCP): " + e.getMessage());
+            this.retry(request);
+            return;
+        }
+
+        try {
+            this.sink.write(request.chunkNo, chunk);
+        } catch (IOException e) {
+            this.failed(e);
+            return;
+        }
+        this.written();
+    }
+
+    @Override
+    public void notify(Message message) {
+        if (!message.getType().equals(ChunkMsg.type) || !message.getFileId().equals(this.fileId))
+            return;
+        ChunkMsg chunkMsg = (ChunkMsg) message;
+        Request request = this.claim(chunkMsg.getChunkNo());
+        if (request == null) return;
+
+        if (this.protocolVersion.equals("2.0") && message.getVersion().equals("2.0")) {
+            Pair<String, Integer> tcpInfo = chunkMsg.getTCP();
+            SenderScheduler.scheduleBlocking(() -> this.fetchTCP(request, tcpInfo), 0);
+            return;
+        }
+
+        try {
+            // written before the packet's buffer goes back to the pool
+            this.sink.write(request.chunkNo, chunkMsg.getChunkBuffer());
+        } catch (IOException e) {
+            this.failed(e);
+            return;
+        }
+        this.written();
+    }
+}
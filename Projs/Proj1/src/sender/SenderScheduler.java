@@ -0,0 +1,72 @@
+package sender;
+
+import utils.Threads;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The timers of every sender of the peer (random delays, retransmissions, timeouts). They all share a couple of
+ * threads, so a big backup doesn't start a thread per message. The timer threads must never block: tasks that do
+ * (e.g.: waiting for a TCP connection) are scheduled with scheduleBlocking and run on a separate pool.
+ */
+public class SenderScheduler {
+    private static final int TIMER_THREADS = Integer.getInteger("sender.timerThreads", 2);
+
+    private static final ScheduledThreadPoolExecutor timer =
+            new ScheduledThreadPoolExecutor(TIMER_THREADS, daemonThreads("sender-timer"));
+    // grows with the number of blocked tasks, and shrinks back when they are done
+    private static final ExecutorService blocking = Threads.newCachedPool(daemonThreads("sender-blocking"));
+    private static final AtomicInteger blockingRunning = new AtomicInteger(0);
+
+    static {
+        // cancelled timers (e.g.: the answer arrived) don't wait in the queue until their time comes
+        timer.setRemoveOnCancelPolicy(true);
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        AtomicInteger count = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable task, long delayMs) {
+        return timer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    public static ScheduledFuture<?> scheduleBlocking(Runnable task, long delayMs) {
+        return timer.schedule(() -> blocking.execute(() -> {
+            blockingRunning.incrementAndGet();
+            try {
+                task.run();
+            } finally {
+                blockingRunning.decrementAndGet();
+            }
+        }), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /* GAUGES */
+    public static int getPendingTimers() {
+        return timer.getQueue().size();
+    }
+
+    public static int getTimerThreads() {
+        return timer.getPoolSize();
+    }
+
+    public static int getBlockingTasks() {
+        return blockingRunning.get();
+    }
+
+    public static String getStats() {
+        return getPendingTimers() + " pending timers on " + getTimerThreads() + " threads, " +
+                getBlockingTasks() + " blocking tasks running" + (Threads.VIRTUAL ? " (virtual threads)" : "");
+    }
+}
@@ -1,33 +1,48 @@
 package sender;
 
 import message.Message;
+import utils.Threads;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.SocketException;
-import java.util.Arrays;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 public class SockThread implements Runnable {
+    // a batch has to fit in a datagram that isn't fragmented
+    private static final int MAX_BATCH_SIZE = 1400;
     private final AtomicBoolean running = new AtomicBoolean(false);
-    private final ExecutorService threadPool =
-            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    private final ExecutorService threadPool = Threads.newPool(Runtime.getRuntime().availableProcessors());
     private final String name;
     private final MulticastSocket sock;
+    // used to send (gathering writes let us send a message's body without copying it into a packet)
+    private final DatagramChannel sendChannel;
     private final InetAddress group;
     private final Integer port;
     private boolean inGroup;
     private MessageHandler handler;
+    private final ReceiveBufferPool bufferPool = new ReceiveBufferPool(64000 + 1000);
+    // messages waiting to be sent together (see send)
+    private final ByteArrayOutputStream batch = new ByteArrayOutputStream(MAX_BATCH_SIZE);
+    private volatile int batchWindowMs = 0;
+    private boolean batchScheduled = false;
 
-    public SockThread(String name, MulticastSocket sock, InetAddress group, Integer port) {
+    public SockThread(String name, MulticastSocket sock, InetAddress group, Integer port) throws IOException {
         this.name = name;
         this.sock = sock;
         this.group = group;
         this.port = port;
+        this.sendChannel = DatagramChannel.open(StandardProtocolFamily.INET);
+        this.sendChannel.connect(new InetSocketAddress(group, port));
 
         this.inGroup = false;
         this.join();
@@ -37,7 +52,7 @@ public class SockThread implements Runnable {
         return this.name;
     }
 
-    public void join() {
+    public synchronized void join() {
         if (inGroup) return;
         try {
             this.sock.joinGroup(this.group);
@@ -47,7 +62,7 @@ public class SockThread implements Runnable {
         }
     }
 
-    public void leave() {
+    public synchronized void leave() {
         if (!inGroup) return;
         try {
             this.sock.leaveGroup(this.group);
@@ -57,14 +72,25 @@ public class SockThread implements Runnable {
         }
     }
 
+    public ReceiveBufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
     public void setHandler(MessageHandler handler) {
         this.handler = handler;
     }
 
     public void close() {
+        synchronized (this.batch) {
+            this.flushBatch();
+        }
         this.leave();
         this.threadPool.shutdown();
         this.sock.close();
+        try {
+            this.sendChannel.close();
+        } catch (IOException ignored) {
+        }
     }
 
     public void interrupt() {
@@ -80,30 +106,80 @@ public class SockThread implements Runnable {
     public void run() {
         running.set(true);
         while (running.get()) {
-            byte[] packetData = new byte[64000 + 1000];
-            DatagramPacket packet = new DatagramPacket(packetData, packetData.length);
+            ReceiveBufferPool.Buffer buffer = this.bufferPool.acquire();
+            DatagramPacket packet = new DatagramPacket(buffer.getData(), buffer.getData().length);
 
             try {
                 this.sock.receive(packet);
             } catch (SocketException e) {
                 // happens if the blocking call is interrupted
+                buffer.release();
                 break;
             } catch (IOException e) {
                 e.printStackTrace();
+                buffer.release();
                 continue;
             }
+            buffer.setLength(packet.getLength());
 
-            this.threadPool.execute(
-                    () -> handler.handleMessage(this.getName(),
-                            Arrays.copyOfRange(packet.getData(), 0, packet.getLength()))
-            );
+            // the handler's task owns the buffer's reference now
+            try {
+                this.threadPool.execute(() -> {
+                    try {
+                        handler.handleMessage(this.getName(), buffer.getData(), buffer.getLength());
+                    } finally {
+                        buffer.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                buffer.release();
+            }
         }
     }
 
+    /* messages without a body sent through this socket are held for up to windowMs and sent together (one datagram).
+     * only peers that can unpack batches (see MessageHandler.handleMessage) should be on the group. 0 => off */
+    public void setBatchWindow(int windowMs) {
+        this.batchWindowMs = windowMs;
+    }
+
+    private void batch(Message message) {
+        byte[] content = message.getContent();
+        synchronized (this.batch) {
+            if (this.batch.size() + content.length > MAX_BATCH_SIZE)
+                this.flushBatch();
+            this.batch.write(content, 0, content.length);
+
+            if (!this.batchScheduled) {
+                this.batchScheduled = true;
+                SenderScheduler.schedule(() -> {
+                    synchronized (this.batch) {
+                        this.batchScheduled = false;
+                        this.flushBatch();
+                    }
+                }, this.batchWindowMs);
+            }
+        }
+    }
+
+    /* called with the batch's lock held */
+    private void flushBatch() {
+        if (this.batch.size() == 0) return;
+        try {
+            sendChannel.write(ByteBuffer.wrap(this.batch.toByteArray()));
+        } catch (IOException ignored) {
+        }
+        this.batch.reset();
+    }
+
     public void send(Message message) {
-        byte[] packetContent = message.getContent();
         System.out.println("Sent: " + message);
-        DatagramPacket packet = new DatagramPacket(packetContent, packetContent.length, group, port);
+        if (this.batchWindowMs > 0 && !message.hasBody()) {
+            this.batch(message);
+            return;
+        }
+
+        ByteBuffer[] packetContent = message.getContentBuffers();
 
         // TODO cul sleep maybe
         // for (int i = 0; i < 3; ++i) {
@@ -121,7 +197,8 @@ public class SockThread implements Runnable {
         // }
 
         try {
-            sock.send(packet);
+            // the buffers are sent as a single datagram
+            sendChannel.write(packetContent);
         } catch (IOException ignored) {
         }
     }
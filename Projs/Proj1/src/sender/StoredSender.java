@@ -21,14 +21,8 @@ public class StoredSender extends MessageSender<StoredMsg> {
     public void run() {
         Random random = new Random();
         int timeout = random.nextInt(MAX_TIMEOUT + 1);
-        new java.util.Timer().schedule(
-                new java.util.TimerTask() {
-                    @Override
-                    public void run() {
-                        StoredSender.super.send();
-                    }
-                },
-                timeout
-        );
+        SenderScheduler.schedule(() -> {
+            super.send();
+        }, timeout);
     }
 }
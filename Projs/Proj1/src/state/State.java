@@ -2,14 +2,32 @@ package state;
 
 import file.DigestFile;
 
+import utils.Pair;
+
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 
 // this class is a singleton
 public class State implements Serializable {
+    // the State used to be saved with java serialization (only read to import older peers' state)
+    private static final long serialVersionUID = 1207941167034576445L;
     public transient static final String REPMAPNAME = "repMap.txt";
+    private transient static final String SNAPSHOTNAME = "state.snap";
+    private transient static final String LOGNAME = "state.log";
+    // "STA2": snapshots start with the generation of the log that follows them
+    private transient static final int SNAPSHOT_MAGIC = 0x53544132;
+    // the state of each file is guarded by one of these (hashed by fileId), so changes to different files
+    // don't wait for each other. has to be initialized before st
+    private transient static final int LOCK_STRIPES = 64;
+    private transient static final Object[] fileLocks = State.createFileLocks();
     public transient static final State st = State.importMap();
 
     // stores the running tasks for recovering on program end
@@ -18,9 +36,16 @@ public class State implements Serializable {
     // fileId -> fileInformation
     private final ConcurrentMap<String, FileInfo> replicationMap;
     // peerId -> set(fileId's que tem a dar delete)
-    private final ConcurrentMap<String, HashSet<String>> undeletedFilesByPeer;
+    private final ConcurrentMap<String, Set<String>> undeletedFilesByPeer;
     private volatile Long maxDiskSpaceB;
-    private volatile transient long filledStorageSizeB;
+    private transient StorageAccountant storage;
+
+    // every change is logged (null while the log is being replayed)
+    private transient StateLog log;
+    // the generation of the log that follows the snapshot this state was loaded from (0 if none)
+    private transient long logGeneration;
+    // changes hold the read lock (they can run concurrently), snapshots hold the write lock
+    private transient ReadWriteLock changeLock;
 
     private State() {
         this.tasks = new ConcurrentHashMap<>();
@@ -33,17 +58,57 @@ public class State implements Serializable {
         return st;
     }
 
+    private static Object[] createFileLocks() {
+        Object[] ret = new Object[LOCK_STRIPES];
+        for (int i = 0; i < ret.length; ++i)
+            ret[i] = new Object();
+        return ret;
+    }
+
+    /* lock that guards the state of the given file. hold it to make multiple changes to a file atomically */
+    public Object getFileLock(String fileId) {
+        return fileLocks[Math.floorMod(fileId.hashCode(), LOCK_STRIPES)];
+    }
+
     // FOR SERIALIZATION
+    /* loads the last snapshot and replays the changes logged after it */
     public static State importMap() {
-        State ret;
+        Path snapshotPath = Paths.get(DigestFile.PEER_DIR + SNAPSHOTNAME);
+        Path legacyPath = Paths.get(DigestFile.PEER_DIR + REPMAPNAME);
+        boolean isLegacy = false;
+
+        State ret = null;
+        if (Files.exists(snapshotPath)) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshotPath)))) {
+                ret = State.readSnapshot(in);
+            } catch (IOException e) {
+                System.err.println("Program state snapshot is unusable.");
+            }
+        } else if (Files.exists(legacyPath)) {
+            try (ObjectInputStream in = new ObjectInputStream(Files.newInputStream(legacyPath))) {
+                ret = (State) in.readObject();
+                // the sets were plain HashSets
+                ret.undeletedFilesByPeer.replaceAll((peerId, fileIds) -> {
+                    Set<String> s = ConcurrentHashMap.newKeySet();
+                    s.addAll(fileIds);
+                    return s;
+                });
+                isLegacy = true;
+            } catch (IOException | ClassNotFoundException e) {
+                System.err.println("Old program state file is unusable.");
+            }
+        }
+        if (ret == null) ret = new State();
+        ret.changeLock = new ReentrantReadWriteLock();
+
         try {
-            FileInputStream fileIn = new FileInputStream(DigestFile.PEER_DIR + REPMAPNAME);
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            ret = (State) in.readObject();
-            in.close();
-            fileIn.close();
-        } catch (IOException | ClassNotFoundException e) {
-            ret = new State();
+            ret.log = new StateLog(Paths.get(DigestFile.PEER_DIR + LOGNAME), snapshotPath, ret.logGeneration, ret);
+            if (isLegacy) {
+                ret.snapshot();
+                Files.delete(legacyPath);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to open the program state log. Changes to the state won't be saved.");
         }
 
         ret.initFilledStorage();
@@ -51,30 +116,158 @@ public class State implements Serializable {
         return ret;
     }
 
+    /* forces the log to disk. every change is already in it */
     public static void exportMap() throws IOException {
+        if (State.st.log == null) return;
         try {
-            FileOutputStream fileOut = new FileOutputStream(DigestFile.PEER_DIR + REPMAPNAME);
-            ObjectOutputStream out = new ObjectOutputStream(fileOut);
-            out.writeObject(State.st);
-            out.close();
-            fileOut.close();
+            State.st.log.close();
         } catch (IOException e) {
             System.err.println("Program state saving to non-volatile storage failed.");
         }
     }
 
+    /* saves the whole state (and empties the log) */
+    public void snapshot() {
+        if (this.log == null) return;
+        this.changeLock.writeLock().lock();
+        try {
+            // someone might have taken a snapshot while we waited
+            if (!this.log.needsSnapshot() && Files.exists(Paths.get(DigestFile.PEER_DIR + SNAPSHOTNAME))) return;
+            this.log.snapshot(this);
+        } catch (IOException e) {
+            System.err.println("Failed to save a snapshot of the program state.");
+        } finally {
+            this.changeLock.writeLock().unlock();
+        }
+    }
+
+    /* applies a change to the state and logs it. no snapshot can be taken in between */
+    private void change(Runnable apply, Consumer<StateLog> record) {
+        if (this.log == null) {
+            apply.run();
+            return;
+        }
+
+        this.changeLock.readLock().lock();
+        try {
+            apply.run();
+            record.accept(this.log);
+        } finally {
+            this.changeLock.readLock().unlock();
+        }
+        if (this.log.needsSnapshot())
+            this.snapshot();
+    }
+
+    void writeSnapshot(DataOutputStream out, long logGeneration) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(logGeneration);
+        out.writeLong(this.maxDiskSpaceB);
+
+        out.writeInt(this.tasks.size());
+        for (String[] task : this.tasks.keySet()) {
+            out.writeInt(task.length);
+            for (String s : task)
+                out.writeUTF(s);
+        }
+
+        out.writeInt(this.replicationMap.size());
+        for (var entry : this.replicationMap.entrySet()) {
+            FileInfo fileInfo = entry.getValue();
+            out.writeUTF(entry.getKey());
+            out.writeBoolean(fileInfo.isInitiator());
+            if (fileInfo.isInitiator())
+                out.writeUTF(fileInfo.getFilePath());
+            out.writeInt(fileInfo.getDesiredRep());
+
+            Map<Integer, Pair<HashSet<String>, Boolean>> chunks = fileInfo.getAllChunks();
+            out.writeInt(chunks.size());
+            for (var chunkEntry : chunks.entrySet()) {
+                out.writeInt(chunkEntry.getKey());
+                out.writeBoolean(chunkEntry.getValue().p2);
+                out.writeInt(chunkEntry.getValue().p1.size());
+                for (String peerId : chunkEntry.getValue().p1)
+                    out.writeUTF(peerId);
+            }
+        }
+
+        out.writeInt(this.undeletedFilesByPeer.size());
+        for (var entry : this.undeletedFilesByPeer.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (String fileId : entry.getValue())
+                out.writeUTF(fileId);
+        }
+    }
+
+    private static State readSnapshot(DataInputStream in) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) throw new IOException("Bad program state snapshot.");
+        State ret = new State();
+        ret.logGeneration = in.readLong();
+        ret.maxDiskSpaceB = in.readLong();
+
+        int taskCount = in.readInt();
+        for (int i = 0; i < taskCount; ++i) {
+            String[] task = new String[in.readInt()];
+            for (int j = 0; j < task.length; ++j)
+                task[j] = in.readUTF();
+            ret.addTask(task);
+        }
+
+        int fileCount = in.readInt();
+        for (int i = 0; i < fileCount; ++i) {
+            String fileId = in.readUTF();
+            if (in.readBoolean())
+                ret.addFileEntry(fileId, in.readUTF(), in.readInt());
+            else
+                ret.addFileEntry(fileId, in.readInt());
+
+            int chunkCount = in.readInt();
+            for (int j = 0; j < chunkCount; ++j) {
+                int chunkNo = in.readInt();
+                boolean amStoring = in.readBoolean();
+                ret.declareChunk(fileId, chunkNo);
+                ret.setAmStoringChunk(fileId, chunkNo, amStoring);
+                int peerCount = in.readInt();
+                for (int k = 0; k < peerCount; ++k)
+                    ret.incrementChunkDeg(fileId, chunkNo, in.readUTF());
+            }
+        }
+
+        int peerCount = in.readInt();
+        for (int i = 0; i < peerCount; ++i) {
+            String peerId = in.readUTF();
+            int undeletedCount = in.readInt();
+            for (int j = 0; j < undeletedCount; ++j)
+                ret.addUndeletedPair(peerId, in.readUTF());
+        }
+
+        return ret;
+    }
+
     // RUNNING TASKS
     public void addTask(String[] task) {
-        this.tasks.put(task, false);
+        this.change(() -> this.tasks.put(task, false), log -> log.addTask(task));
     }
 
     public void rmTask(String[] task) {
-        this.tasks.remove(task);
+        if (!this.tasks.containsKey(task)) return;
+        this.change(() -> this.tasks.remove(task), log -> log.rmTask(task));
+    }
+
+    /* used when replaying the log (the logged task isn't the same object as the one in the map) */
+    void rmEqualTask(String[] task) {
+        for (String[] t : this.tasks.keySet()) {
+            if (Arrays.equals(t, task)) {
+                this.tasks.remove(t);
+                return;
+            }
+        }
     }
 
     public List<String[]> getTasks() {
         List<String[]> ret = new ArrayList<>(this.tasks.keySet());
-        this.tasks.clear();
+        this.change(this.tasks::clear, StateLog::clearTasks);
         return ret;
     }
 
@@ -84,7 +277,9 @@ public class State implements Serializable {
     }
 
     public void setMaxDiskSpaceB(Long maxDiskSpaceB) {
-        this.maxDiskSpaceB = maxDiskSpaceB;
+        this.change(() -> this.maxDiskSpaceB = maxDiskSpaceB, log -> log.setMaxDiskSpace(maxDiskSpaceB));
+        if (this.storage != null)
+            this.storage.setCapacityB(maxDiskSpaceB);
     }
 
     public Long getMaxDiskSpaceKB() {
@@ -92,33 +287,34 @@ public class State implements Serializable {
     }
 
     public void initFilledStorage() {
-        this.filledStorageSizeB = DigestFile.getStorageSize();
+        this.storage = new StorageAccountant(DigestFile.getStorageSize(), this.maxDiskSpaceB);
     }
 
     public long getFilledStorageB() {
-        return this.filledStorageSizeB;
+        return this.storage.getUsedB();
     }
 
-    public boolean updateStorageSize(long sizeToAddB) {
-        if (sizeToAddB < 0) {
-            filledStorageSizeB += sizeToAddB;
-            return true;
-        }
+    /* reserves space for a chunk we are about to write. it has to be released if the chunk isn't written */
+    public boolean reserveStorage(long sizeB) {
+        return this.storage.reserve(sizeB);
+    }
 
-        if (maxDiskSpaceB < 0) { // is infinite
-            filledStorageSizeB += sizeToAddB;
-            return true;
-        }
+    public void releaseStorage(long sizeB) {
+        this.storage.release(sizeB);
+    }
 
-        if (filledStorageSizeB + sizeToAddB < maxDiskSpaceB) {
-            filledStorageSizeB += sizeToAddB;
-            return true;
-        }
-        return false;
+    /* space of deleted chunks */
+    public void freeStorage(long sizeB) {
+        this.storage.free(sizeB);
     }
 
     public boolean isStorageFull() {
-        return this.maxDiskSpaceB >= 0 && (this.filledStorageSizeB >= this.maxDiskSpaceB);
+        return this.storage.isFull();
+    }
+
+    /* called when the storage becomes full/stops being full (see StorageAccountant) */
+    public void setStorageListener(StorageAccountant.WatermarkListener listener) {
+        this.storage.setListener(listener);
     }
 
     public boolean isChunkOk(String fileId, int chunkNo) {
@@ -146,31 +342,46 @@ public class State implements Serializable {
 
     // ADD
     public void addFileEntry(String fileId, String filePath, int desiredRep) {
-        if (!this.replicationMap.containsKey(fileId)) {
-            this.replicationMap.put(fileId, new FileInfo(filePath, desiredRep));
-        } else {
-            FileInfo fileInfo = this.replicationMap.get(fileId);
-            fileInfo.setDesiredRep(desiredRep);
+        synchronized (this.getFileLock(fileId)) {
+            this.change(() -> {
+                if (!this.replicationMap.containsKey(fileId)) {
+                    this.replicationMap.put(fileId, new FileInfo(filePath, desiredRep));
+                } else {
+                    FileInfo fileInfo = this.replicationMap.get(fileId);
+                    fileInfo.setDesiredRep(desiredRep);
+                }
+            }, log -> log.addFileEntry(fileId, filePath, desiredRep));
         }
     }
 
     public void addFileEntry(String fileId, int desiredRep) {
-        if (!this.replicationMap.containsKey(fileId)) {
-            this.replicationMap.put(fileId, new FileInfo(desiredRep));
-        } else {
-            FileInfo fileInfo = this.replicationMap.get(fileId);
-            fileInfo.setDesiredRep(desiredRep);
+        synchronized (this.getFileLock(fileId)) {
+            this.change(() -> {
+                if (!this.replicationMap.containsKey(fileId)) {
+                    this.replicationMap.put(fileId, new FileInfo(desiredRep));
+                } else {
+                    FileInfo fileInfo = this.replicationMap.get(fileId);
+                    fileInfo.setDesiredRep(desiredRep);
+                }
+            }, log -> log.addFileEntry(fileId, null, desiredRep));
         }
     }
 
     public void removeFileEntry(String fileId) {
-        this.replicationMap.remove(fileId);
+        synchronized (this.getFileLock(fileId)) {
+            if (!this.replicationMap.containsKey(fileId)) return;
+            this.change(() -> this.replicationMap.remove(fileId), log -> log.removeFileEntry(fileId));
+        }
     }
 
     public void declareChunk(String fileId, int chunkNo) {
-        // only declares if it isn't declared yet
-        if (!this.replicationMap.containsKey(fileId)) return;
-        this.replicationMap.get(fileId).declareChunk(chunkNo);
+        synchronized (this.getFileLock(fileId)) {
+            // only declares if it isn't declared yet
+            if (!this.replicationMap.containsKey(fileId)) return;
+            if (this.replicationMap.get(fileId).getAllChunks().containsKey(chunkNo)) return;
+            this.change(() -> this.replicationMap.get(fileId).declareChunk(chunkNo),
+                    log -> log.declareChunk(fileId, chunkNo));
+        }
     }
 
     // REPLICATION DEGREE
@@ -189,32 +400,36 @@ public class State implements Serializable {
     }
 
     public void incrementChunkDeg(String fileId, int chunkNo, String peerId) {
-        if (!this.replicationMap.containsKey(fileId)) return;
-        this.replicationMap.get(fileId).incrementChunkDeg(chunkNo, peerId);
+        synchronized (this.getFileLock(fileId)) {
+            if (!this.replicationMap.containsKey(fileId)) return;
+            this.change(() -> this.replicationMap.get(fileId).incrementChunkDeg(chunkNo, peerId),
+                    log -> log.incrementChunkDeg(fileId, chunkNo, peerId));
+        }
     }
 
     public void decrementChunkDeg(String fileId, int chunkNo, String peerId) {
-        if (!this.replicationMap.containsKey(fileId)) return;
-        this.replicationMap.get(fileId).decrementChunkDeg(chunkNo, peerId);
+        synchronized (this.getFileLock(fileId)) {
+            if (!this.replicationMap.containsKey(fileId)) return;
+            this.change(() -> this.replicationMap.get(fileId).decrementChunkDeg(chunkNo, peerId),
+                    log -> log.decrementChunkDeg(fileId, chunkNo, peerId));
+        }
     }
 
     // UNDELETED PEER FILES
     public void addUndeletedPair(String peerId, String fileId) {
-        if (!this.undeletedFilesByPeer.containsKey(peerId))
-            this.undeletedFilesByPeer.put(peerId, new HashSet<>() {{
-                add(fileId);
-            }});
-        this.undeletedFilesByPeer.get(peerId).add(fileId);
+        this.change(() -> this.undeletedFilesByPeer.computeIfAbsent(peerId, k -> ConcurrentHashMap.newKeySet())
+                .add(fileId), log -> log.addUndeletedPair(peerId, fileId));
     }
 
     public boolean removeUndeletedPair(String peerId, String fileId) {
         if (!this.undeletedFilesByPeer.containsKey(peerId))
             return false;
 
-        Set<String> s = this.undeletedFilesByPeer.get(peerId);
-        s.remove(fileId);
-        if (s.size() == 0)
-            this.undeletedFilesByPeer.remove(peerId);
+        // the set is dropped (atomically) when it becomes empty
+        this.change(() -> this.undeletedFilesByPeer.computeIfPresent(peerId, (k, s) -> {
+            s.remove(fileId);
+            return s.isEmpty() ? null : s;
+        }), log -> log.removeUndeletedPair(peerId, fileId));
 
         return true;
     }
@@ -224,7 +439,8 @@ public class State implements Serializable {
     }
 
     public void ignorePeerDeletedFiles(String peerId) {
-        this.undeletedFilesByPeer.remove(peerId);
+        if (!this.undeletedFilesByPeer.containsKey(peerId)) return;
+        this.change(() -> this.undeletedFilesByPeer.remove(peerId), log -> log.ignorePeerDeletedFiles(peerId));
     }
 
     public boolean notToDeleteAnymore(String fileId) {
@@ -244,8 +460,11 @@ public class State implements Serializable {
     }
 
     public void setAmStoringChunk(String fileId, int chunkNo, boolean amStoring) {
-        if (!this.replicationMap.containsKey(fileId)) return;
-        this.replicationMap.get(fileId).setAmStoringChunk(chunkNo, amStoring);
+        synchronized (this.getFileLock(fileId)) {
+            if (!this.replicationMap.containsKey(fileId)) return;
+            this.change(() -> this.replicationMap.get(fileId).setAmStoringChunk(chunkNo, amStoring),
+                    log -> log.setAmStoringChunk(fileId, chunkNo, amStoring));
+        }
     }
 
     // ITERATION
@@ -0,0 +1,326 @@
+package state;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/*
+ * Write-ahead log of the changes made to the State. Replaying it over the last snapshot rebuilds the State, so
+ * the State never needs to be saved as a whole (except for the snapshots taken every SNAPSHOT_EVERY changes,
+ * which keep the log short).
+ *
+ * Log format: generation (long) | records
+ * Record format: payload length (int) | CRC32 of the payload (int) | payload (record type (byte) | fields)
+ *
+ * Each snapshot starts a new generation of the log and stores it. A log older than the snapshot was left behind by a
+ * crash between saving the snapshot and emptying the log: its changes are already in the snapshot (replaying them
+ * again would e.g. duplicate the tasks).
+ */
+class StateLog implements Closeable {
+    private static final int SNAPSHOT_EVERY = Integer.getInteger("state.snapshotEvery", 10000);
+    private static final int HEADER_SIZE = Long.BYTES;
+
+    // record types
+    private static final byte ADD_TASK = 1;
+    private static final byte RM_TASK = 2;
+    private static final byte CLEAR_TASKS = 3;
+    private static final byte SET_MAX_DISK = 4;
+    private static final byte ADD_FILE = 5;
+    private static final byte ADD_INITIATED_FILE = 6;
+    private static final byte REMOVE_FILE = 7;
+    private static final byte DECLARE_CHUNK = 8;
+    private static final byte INCREMENT_DEG = 9;
+    private static final byte DECREMENT_DEG = 10;
+    private static final byte SET_STORING = 11;
+    private static final byte ADD_UNDELETED = 12;
+    private static final byte REMOVE_UNDELETED = 13;
+    private static final byte IGNORE_PEER = 14;
+
+    private final Path snapshotPath;
+    private final FileChannel channel;
+    // the record being written (reused between records)
+    private final ByteArrayOutputStream recordBytes;
+    private final DataOutputStream record;
+    private final CRC32 crc;
+    private long generation;
+    private int recordsSinceSnapshot;
+    private boolean failed;
+
+    private interface RecordWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /* opens the log and replays it into the given state (loaded from the snapshot of the given generation) */
+    StateLog(Path logPath, Path snapshotPath, long snapshotGeneration, State state) throws IOException {
+        this.snapshotPath = snapshotPath;
+        this.channel = FileChannel.open(logPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.recordBytes = new ByteArrayOutputStream();
+        this.record = new DataOutputStream(this.recordBytes);
+        this.crc = new CRC32();
+        this.recordsSinceSnapshot = 0;
+        this.failed = false;
+
+        if (this.channel.size() >= HEADER_SIZE && this.readGeneration() >= snapshotGeneration) {
+            long end = this.replay(state);
+            // a crash can leave a half written record at the end of the log
+            this.channel.truncate(end);
+            this.channel.position(end);
+        } else {
+            // a new log, or one that is older than the snapshot
+            this.generation = snapshotGeneration;
+            this.reset();
+        }
+    }
+
+    private long readGeneration() throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+        while (buf.hasRemaining())
+            this.channel.read(buf, buf.position());
+        this.generation = buf.getLong(0);
+        return this.generation;
+    }
+
+    /* empties the log and starts it with its generation */
+    private void reset() throws IOException {
+        this.channel.truncate(0);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE).putLong(this.generation).flip();
+        while (buf.hasRemaining())
+            this.channel.write(buf, buf.position());
+        this.channel.position(HEADER_SIZE);
+        this.recordsSinceSnapshot = 0;
+    }
+
+    /* RECORDS */
+    void addTask(String[] task) {
+        this.append(ADD_TASK, out -> writeStrings(out, task));
+    }
+
+    void rmTask(String[] task) {
+        this.append(RM_TASK, out -> writeStrings(out, task));
+    }
+
+    void clearTasks() {
+        this.append(CLEAR_TASKS, out -> {
+        });
+    }
+
+    void setMaxDiskSpace(long maxDiskSpaceB) {
+        this.append(SET_MAX_DISK, out -> out.writeLong(maxDiskSpaceB));
+    }
+
+    void addFileEntry(String fileId, String filePath, int desiredRep) {
+        if (filePath == null) {
+            this.append(ADD_FILE, out -> {
+                out.writeUTF(fileId);
+                out.writeInt(desiredRep);
+            });
+        } else {
+            this.append(ADD_INITIATED_FILE, out -> {
+                out.writeUTF(fileId);
+                out.writeUTF(filePath);
+                out.writeInt(desiredRep);
+            });
+        }
+    }
+
+    void removeFileEntry(String fileId) {
+        this.append(REMOVE_FILE, out -> out.writeUTF(fileId));
+    }
+
+    void declareChunk(String fileId, int chunkNo) {
+        this.append(DECLARE_CHUNK, out -> {
+            out.writeUTF(fileId);
+            out.writeInt(chunkNo);
+        });
+    }
+
+    void incrementChunkDeg(String fileId, int chunkNo, String peerId) {
+        this.append(INCREMENT_DEG, out -> {
+            out.writeUTF(fileId);
+            out.writeInt(chunkNo);
+            out.writeUTF(peerId);
+        });
+    }
+
+    void decrementChunkDeg(String fileId, int chunkNo, String peerId) {
+        this.append(DECREMENT_DEG, out -> {
+            out.writeUTF(fileId);
+            out.writeInt(chunkNo);
+            out.writeUTF(peerId);
+        });
+    }
+
+    void setAmStoringChunk(String fileId, int chunkNo, boolean amStoring) {
+        this.append(SET_STORING, out -> {
+            out.writeUTF(fileId);
+            out.writeInt(chunkNo);
+            out.writeBoolean(amStoring);
+        });
+    }
+
+    void addUndeletedPair(String peerId, String fileId) {
+        this.append(ADD_UNDELETED, out -> {
+            out.writeUTF(peerId);
+            out.writeUTF(fileId);
+        });
+    }
+
+    void removeUndeletedPair(String peerId, String fileId) {
+        this.append(REMOVE_UNDELETED, out -> {
+            out.writeUTF(peerId);
+            out.writeUTF(fileId);
+        });
+    }
+
+    void ignorePeerDeletedFiles(String peerId) {
+        this.append(IGNORE_PEER, out -> out.writeUTF(peerId));
+    }
+
+    private static void writeStrings(DataOutputStream out, String[] strings) throws IOException {
+        out.writeInt(strings.length);
+        for (String s : strings)
+            out.writeUTF(s);
+    }
+
+    private static String[] readStrings(DataInputStream in) throws IOException {
+        String[] ret = new String[in.readInt()];
+        for (int i = 0; i < ret.length; ++i)
+            ret[i] = in.readUTF();
+        return ret;
+    }
+
+    /* the record reaches the OS right away (survives the process crashing). it's only forced to disk on
+     * snapshots and when the log is closed */
+    private synchronized void append(byte type, RecordWriter writer) {
+        try {
+            this.recordBytes.reset();
+            this.record.writeByte(type);
+            writer.write(this.record);
+
+            byte[] payload = this.recordBytes.toByteArray();
+            this.crc.reset();
+            this.crc.update(payload);
+            ByteBuffer buf = ByteBuffer.allocate(8 + payload.length)
+                    .putInt(payload.length).putInt((int) this.crc.getValue()).put(payload).flip();
+            while (buf.hasRemaining())
+                this.channel.write(buf);
+            ++this.recordsSinceSnapshot;
+        } catch (IOException e) {
+            if (!this.failed)
+                System.err.println("Failed to log a change to the program state. Later changes might be lost.");
+            this.failed = true;
+        }
+    }
+
+    /* REPLAY */
+    /* applies the log's records to the given state. returns where the last complete record ends */
+    private long replay(State state) throws IOException {
+        this.channel.position(HEADER_SIZE);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.channel)));
+        long size = this.channel.size();
+        long pos = HEADER_SIZE;
+        while (pos + 8 <= size) {
+            int length = in.readInt();
+            int checksum = in.readInt();
+            if (length <= 0 || pos + 8 + length > size) break;  // half written record
+            byte[] payload = in.readNBytes(length);
+            this.crc.reset();
+            this.crc.update(payload);
+            if ((int) this.crc.getValue() != checksum) break;
+
+            try {
+                this.apply(state, new DataInputStream(new ByteArrayInputStream(payload)));
+            } catch (IOException e) {
+                break;
+            }
+            pos += 8 + length;
+            ++this.recordsSinceSnapshot;
+        }
+        return pos;
+    }
+
+    private void apply(State state, DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case ADD_TASK:
+                state.addTask(readStrings(in));
+                break;
+            case RM_TASK:
+                state.rmEqualTask(readStrings(in));
+                break;
+            case CLEAR_TASKS:
+                state.getTasks();
+                break;
+            case SET_MAX_DISK:
+                state.setMaxDiskSpaceB(in.readLong());
+                break;
+            case ADD_FILE:
+                state.addFileEntry(in.readUTF(), in.readInt());
+                break;
+            case ADD_INITIATED_FILE:
+                state.addFileEntry(in.readUTF(), in.readUTF(), in.readInt());
+                break;
+            case REMOVE_FILE:
+                state.removeFileEntry(in.readUTF());
+                break;
+            case DECLARE_CHUNK:
+                state.declareChunk(in.readUTF(), in.readInt());
+                break;
+            case INCREMENT_DEG:
+                state.incrementChunkDeg(in.readUTF(), in.readInt(), in.readUTF());
+                break;
+            case DECREMENT_DEG:
+                state.decrementChunkDeg(in.readUTF(), in.readInt(), in.readUTF());
+                break;
+            case SET_STORING:
+                state.setAmStoringChunk(in.readUTF(), in.readInt(), in.readBoolean());
+                break;
+            case ADD_UNDELETED:
+                state.addUndeletedPair(in.readUTF(), in.readUTF());
+                break;
+            case REMOVE_UNDELETED:
+                state.removeUndeletedPair(in.readUTF(), in.readUTF());
+                break;
+            case IGNORE_PEER:
+                state.ignorePeerDeletedFiles(in.readUTF());
+                break;
+            default:
+                throw new IOException("Unknown state log record type: " + type);
+        }
+    }
+
+    /* SNAPSHOTS */
+    boolean needsSnapshot() {
+        return this.recordsSinceSnapshot >= SNAPSHOT_EVERY;
+    }
+
+    /* saves the whole state and empties the log. no changes can be made to the state while this runs */
+    synchronized void snapshot(State state) throws IOException {
+        long nextGeneration = this.generation + 1;
+        Path tmpPath = this.snapshotPath.resolveSibling(this.snapshotPath.getFileName() + ".tmp");
+        try (FileOutputStream fileOut = new FileOutputStream(tmpPath.toFile());
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut))) {
+            state.writeSnapshot(out, nextGeneration);
+            out.flush();
+            fileOut.getFD().sync();
+        }
+        Files.move(tmpPath, this.snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // the snapshot has every change in the log (if we crash before the log is emptied, its generation is too old)
+        this.generation = nextGeneration;
+        this.reset();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.channel.force(false);
+        this.channel.close();
+    }
+}
@@ -0,0 +1,121 @@
+package state;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps track of the storage used by the chunks we store. Space is reserved before a chunk is written and released
+ * if it couldn't be written. The reservation is the only step that checks the capacity, and it's done with a CAS, so
+ * concurrent writers can't go over the capacity together.
+ * Listeners are told when the usage reaches HIGH_WATERMARK percent of the capacity (or a chunk doesn't fit anymore)
+ * and when it falls back below LOW_WATERMARK percent of it. The gap keeps us from flapping between the two.
+ */
+public class StorageAccountant {
+    private static final int HIGH_WATERMARK = Integer.getInteger("storage.highWatermark", 95);
+    private static final int LOW_WATERMARK = Math.min(HIGH_WATERMARK, Integer.getInteger("storage.lowWatermark", 90));
+
+    public interface WatermarkListener {
+        /* isFull == true => high watermark reached. isFull == false => went below the low watermark */
+        void crossed(boolean isFull);
+    }
+
+    // stored + reserved bytes
+    private final AtomicLong claimedB;
+    private volatile long capacityB;  // < 0 => infinite
+    private volatile WatermarkListener listener;
+    private volatile boolean isFull;  // changed with the lock held
+
+    public StorageAccountant(long usedB, long capacityB) {
+        this.claimedB = new AtomicLong(usedB);
+        this.capacityB = capacityB;
+        this.listener = null;
+        this.isFull = this.isAboveHigh();
+    }
+
+    /* reserves space for a chunk. returns false if it doesn't fit */
+    public boolean reserve(long sizeB) {
+        while (true) {
+            long claimed = this.claimedB.get();
+            long capacity = this.capacityB;
+            if (capacity >= 0 && claimed + sizeB >= capacity) {
+                this.setFull();  // we can't take chunks anymore, even if we are below the high watermark
+                return false;
+            }
+            if (this.claimedB.compareAndSet(claimed, claimed + sizeB))
+                break;
+        }
+        this.checkWatermarks();
+        return true;
+    }
+
+    /* gives back space that was reserved but not used */
+    public void release(long sizeB) {
+        this.claimedB.addAndGet(-sizeB);
+        this.checkWatermarks();
+    }
+
+    /* gives back space used by chunks that were deleted */
+    public void free(long sizeB) {
+        this.claimedB.addAndGet(-sizeB);
+        this.checkWatermarks();
+    }
+
+    public long getUsedB() {
+        return this.claimedB.get();
+    }
+
+    public void setCapacityB(long capacityB) {
+        this.capacityB = capacityB;
+        this.checkWatermarks();
+    }
+
+    public boolean isFull() {
+        return this.isFull;
+    }
+
+    /* the listener is told about the current state right away */
+    public synchronized void setListener(WatermarkListener listener) {
+        this.listener = listener;
+        this.isFull = this.isAboveHigh();
+        if (listener != null)
+            listener.crossed(this.isFull);
+    }
+
+    private boolean isAboveHigh() {
+        long capacity = this.capacityB;
+        return capacity >= 0 && this.claimedB.get() >= capacity * HIGH_WATERMARK / 100;
+    }
+
+    private boolean isBelowLow() {
+        long capacity = this.capacityB;
+        return capacity < 0 || this.claimedB.get() < capacity * LOW_WATERMARK / 100;
+    }
+
+    /* a chunk was turned down: we are full until we go below the low watermark (if we aren't already) */
+    private void setFull() {
+        if (this.isFull || this.isBelowLow()) return;
+        synchronized (this) {
+            if (this.isFull || this.isBelowLow()) return;
+            this.isFull = true;
+            if (this.listener != null)
+                this.listener.crossed(true);
+        }
+    }
+
+    private void checkWatermarks() {
+        // cheap check first: nothing to do most of the time
+        if (this.isFull ? !this.isBelowLow() : !this.isAboveHigh()) return;
+
+        // the listener is called with the lock held, so the events arrive in order
+        synchronized (this) {
+            if (!this.isFull && this.isAboveHigh()) {
+                this.isFull = true;
+            } else if (this.isFull && this.isBelowLow()) {
+                this.isFull = false;
+            } else {
+                return;
+            }
+            if (this.listener != null)
+                this.listener.crossed(this.isFull);
+        }
+    }
+}
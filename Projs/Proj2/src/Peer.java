@@ -1,6 +1,9 @@
 import chord.ChordController;
+import chord.ChordId;
 import chord.ChordInterface;
+import file.ChunkIterator;
 import file.DigestFile;
+import file.RestoreSink;
 import message.DeleteMsg;
 import message.GetChunkMsg;
 import message.PutChunkMsg;
@@ -9,20 +12,24 @@ import state.FileInfo;
 import state.State;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.InetAddress;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
 import java.nio.file.Paths;
 import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class Peer implements TestInterface {
     private ChordController chordController;
@@ -31,9 +38,15 @@ public class Peer implements TestInterface {
     private final String id;
     private final InetAddress address;
     private final int port;
+    private final Object reclaimLock = new Object();
 
     public Registry registry = null;
 
+    // max number of PUTCHUNKs (and their chunks) waiting to be sent during a backup
+    private static final int PUTCHUNK_WINDOW = Integer.getInteger("putchunk.window", 16);
+    // max number of GETCHUNKs in-flight during a restore
+    private static final int RESTORE_WINDOW = Integer.getInteger("restore.window", 16);
+
     public Peer(String[] args) throws IOException {
         // parse args
         if (args.length != 3) usage();
@@ -73,7 +86,7 @@ public class Peer implements TestInterface {
                     @Override
                     public void run() {
                         try {
-                            chordNode.getChordNode().stabilize();
+                            chordNode.getChordNode().fixFingers();
                         } catch (Exception ignored) {
                         }
                     }
@@ -169,7 +182,7 @@ public class Peer implements TestInterface {
         if (registry != null) {
             try {
                 if (this.chordController != null) // Chord node might not be initiated yet
-                    registry.unbind(String.valueOf(chordController.getId()));
+                    registry.unbind(chordController.getId().toString());
             } catch (RemoteException | NotBoundException e) {
                 System.err.println("Failed to unregister our chordNode from the RMI service.");
             }
@@ -188,6 +201,7 @@ public class Peer implements TestInterface {
 
         try {
             State.exportMap();
+            DigestFile.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -265,7 +279,7 @@ public class Peer implements TestInterface {
         String[] l = this.registry.list();
         String peerId = null;
         for (var e : l) {
-            if (!e.startsWith("peer") && !e.equals(String.valueOf(chordController.getId()))) {
+            if (!e.startsWith("peer") && !e.equals(chordController.getId().toString())) {
                 peerId = e;
             }
         }
@@ -291,7 +305,7 @@ public class Peer implements TestInterface {
         State.st.addTask(task);
 
         String fileId;
-        List<byte[]> chunks;
+        ChunkIterator chunks;
         try {
             fileId = DigestFile.getHash(filePath);
 
@@ -307,21 +321,55 @@ public class Peer implements TestInterface {
             }
 
             chunks = DigestFile.divideFile(filePath, replicationDegree);
+            this.lookupChunkOwners(fileId, DigestFile.getChunkCount(filePath));
         } catch (IOException e) {
             State.st.rmTask(task);
             throw new RemoteException("Couldn't divide file " + filePath);
         }
 
-        for (int i = 0; i < chunks.size(); ++i) {
-            int destId = DigestFile.getId(fileId, i);
-            this.chordController.send(new PutChunkMsg(fileId, i, chunks.get(i), replicationDegree, destId));
+        // chunks are only read from disk when there's room in the window of in-flight PUTCHUNKs
+        Deque<Future<?>> window = new ArrayDeque<>();
+        int sent = 0, failed = 0;
+        try (chunks) {
+            while (chunks.hasNext()) {
+                if (window.size() >= PUTCHUNK_WINDOW && !this.waitSent(window.poll()))
+                    ++failed;
+
+                int i = chunks.getNextChunkNo();
+                State.st.declareChunk(fileId, i);  // only declares if it isn't declared yet
+                ChordId destId = DigestFile.getId(fileId, i);
+                window.add(this.chordController.send(new PutChunkMsg(fileId, i, chunks.next(), replicationDegree, destId)));
+                ++sent;
+            }
+            while (!window.isEmpty())
+                if (!this.waitSent(window.poll()))
+                    ++failed;
+        } catch (IOException | UncheckedIOException e) {
+            State.st.rmTask(task);
+            throw new RemoteException("Couldn't read file " + filePath);
+        } catch (InterruptedException e) {
+            State.st.rmTask(task);
+            throw new RemoteException("Interrupted while backing up the file " + filePath);
         }
 
         State.st.rmTask(task);
 
+        if (failed > 0)
+            return "Failed to send " + failed + " of " + sent + " chunks of the file: " + filePath;
         return "Backed up the file: " + filePath;
     }
 
+    /* waits for a PUTCHUNK to leave this peer. false if it couldn't be sent */
+    private boolean waitSent(Future<?> sending) throws InterruptedException {
+        try {
+            sending.get();
+            return true;
+        } catch (ExecutionException e) {
+            System.err.println(e.getCause().getMessage());
+            return false;
+        }
+    }
+
     @Override
     public String restore(String filePath) throws RemoteException {
         String[] task = new String[]{"RESTORE", filePath};
@@ -343,49 +391,65 @@ public class Peer implements TestInterface {
             throw new RemoteException("File " + filePath + " is too big");
         }
 
-        // Storing the futures to be able to restore the file after getting all the chunks (or failing
-        // if a chunk is missing)
-        List<CompletableFuture<byte[]>> promisedChunks = new ArrayList<>();
-        for (int currChunk = 0; currChunk < chunkNo; ++currChunk) {
-            // Add future to node so that it notifies it
-            CompletableFuture<byte[]> fut = new CompletableFuture<>();
-            promisedChunks.add(fut);
-            this.chordController.addChunkFuture(fileId, currChunk, fut);
-
-            // Send getchunk message
-            int destId = DigestFile.getId(fileId, currChunk);
-            this.chordController.send(new GetChunkMsg(fileId, currChunk, this.address, this.port, destId));
-        }
+        this.lookupChunkOwners(fileId, chunkNo);
+
+        // each chunk is written as soon as it arrives. only RESTORE_WINDOW GETCHUNKs are in-flight at a time
+        String fileName = Paths.get(filePath).getFileName().toString();
+        Deque<CompletableFuture<Void>> window = new ArrayDeque<>();
+        try (RestoreSink sink = DigestFile.createRestoreSink(fileName, chunkNo)) {
+            for (int currChunk = 0; currChunk < chunkNo; ++currChunk) {
+                if (window.size() >= RESTORE_WINDOW)
+                    window.poll().get();
+
+                // Add future to node so that it notifies it
+                CompletableFuture<ByteBuffer> fut = new CompletableFuture<>();
+                this.chordController.addChunkFuture(fileId, currChunk, fut);
+                final int chunkToWrite = currChunk;
+                window.add(fut.thenAccept(chunk -> {
+                    if (chunk == null) // Getchunk passed through everyone and didn't work
+                        throw new IllegalStateException("Couldn't get chunk " + chunkToWrite);
+                    try {
+                        sink.write(chunkToWrite, chunk);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }));
 
-        List<byte[]> chunks = new ArrayList<>(chunkNo);
-        for (int currChunk = 0; currChunk < chunkNo; ++currChunk) {
-            CompletableFuture<byte[]> fut = promisedChunks.get(currChunk);
-            try {
-                byte[] chunk = fut.get();
-                if (chunk == null) { // Getchunk passed through everyone and didn't work
-                    this.chordController.removeAllChunkFuture(fileId); // clean up all promises (we won't need them)
-                    State.st.rmTask(task);
-                    throw new RemoteException("Couldn't get chunk " + currChunk);
-                }
-                chunks.add(chunk);
-            } catch (InterruptedException | ExecutionException e) {
-                State.st.rmTask(task);
-                throw new RemoteException("Couldn't get chunk " + currChunk);
+                // Send getchunk message
+                ChordId destId = DigestFile.getId(fileId, currChunk);
+                this.chordController.send(new GetChunkMsg(fileId, currChunk, this.address, this.port, destId));
             }
-        }
-
-        Path path = Paths.get(filePath);
-        try {
-            DigestFile.assembleFile(path.getFileName().toString(), chunks);
+            while (!window.isEmpty())
+                window.poll().get();
+            sink.finish();
+        } catch (ExecutionException e) {
+            this.chordController.removeAllChunkFuture(fileId); // clean up all promises (we won't need them)
+            State.st.rmTask(task);
+            if (e.getCause() instanceof UncheckedIOException)
+                throw new RemoteException("Failed to write restored file: " + fileName);
+            throw new RemoteException(e.getCause().getMessage());
         } catch (IOException e) {
+            this.chordController.removeAllChunkFuture(fileId);
+            State.st.rmTask(task);
+            throw new RemoteException("Failed to write restored file: " + fileName);
+        } catch (InterruptedException e) {
+            this.chordController.removeAllChunkFuture(fileId);
             State.st.rmTask(task);
-            throw new RemoteException("Failed to write restored file: " + path.getFileName().toString());
+            throw new RemoteException("Interrupted while restoring the file " + filePath);
         }
 
         State.st.rmTask(task);
         return "Restored file " + filePath + " with hash " + fileId + ".";
     }
 
+    /* finds the owners of all the chunks of a file in one pass around the ring, so each chunk is sent in one hop */
+    private void lookupChunkOwners(String fileId, int chunkCount) {
+        List<ChordId> ids = new ArrayList<>();
+        for (int i = 0; i < chunkCount; ++i)
+            ids.add(DigestFile.getId(fileId, i));
+        this.chordController.lookupAll(ids);
+    }
+
     public String deleteFromId(String fileId) {
         // we don't want the old entry anymore
         State.st.removeFileEntry(fileId);
@@ -413,28 +477,30 @@ public class Peer implements TestInterface {
 
         for (var entry : State.st.getAllFilesInfo().entrySet()) {
             String fileId = entry.getKey();
-            for (var chunkEntry : entry.getValue().getAllChunks().entrySet()) {
-                int chunkNo = chunkEntry.getKey();
-                boolean isStored = chunkEntry.getValue().p2 != -1;
-
-                if (isStored) {
-                    // if we have the chunk stored => delete it && decrement perceived rep.
-                    int chunkId = DigestFile.getId(fileId, chunkNo);
-                    // Delete the chunk and update state
-                    long chunkSize = DigestFile.deleteChunk(fileId, chunkNo); // updates state capacity
-                    State.st.setAmStoringChunk(fileId, chunkNo, -1);
-                    currentCap -= chunkSize;
-                    // Send Removed message to the responsible of the chunk
-                    this.chordController.send(new RemovedMsg(fileId, chunkNo, chunkId, chunkId, false));
-
-                    // Send Removed message to our predecessor so that it updates the chunks that it thinks we store
-                    RemovedMsg predMsg = new RemovedMsg(fileId, chunkNo, chunkId,
-                            chunkId, true);
-                    this.chordController.sendToPred(predMsg);
-                }
+            synchronized (State.st.getFileLock(fileId)) {
+                for (var chunkEntry : entry.getValue().getAllChunks().entrySet()) {
+                    int chunkNo = chunkEntry.getKey();
+                    boolean isStored = chunkEntry.getValue().p2 != -1;
+
+                    if (isStored) {
+                        // if we have the chunk stored => delete it && decrement perceived rep.
+                        ChordId chunkId = DigestFile.getId(fileId, chunkNo);
+                        // Delete the chunk and update state
+                        long chunkSize = DigestFile.deleteChunk(fileId, chunkNo); // updates state capacity
+                        State.st.setAmStoringChunk(fileId, chunkNo, -1);
+                        currentCap -= chunkSize;
+                        // Send Removed message to the responsible of the chunk
+                        this.chordController.send(new RemovedMsg(fileId, chunkNo, chunkId, chunkId, false));
+
+                        // Send Removed message to our predecessor so that it updates the chunks that it thinks we store
+                        RemovedMsg predMsg = new RemovedMsg(fileId, chunkNo, chunkId,
+                                chunkId, true);
+                        this.chordController.sendToPred(predMsg);
+                    }
 
-                if (currentCap <= 0)
-                    break;
+                    if (currentCap <= 0)
+                        break;
+                }
             }
 
             if (currentCap <= 0)
@@ -449,7 +515,8 @@ public class Peer implements TestInterface {
         long newMaxDiskSpaceB = newMaxDiskSpaceKB * 1000L;
         boolean isDone = false;
 
-        synchronized (State.st) {
+        // only one reclaim at a time (the message handlers don't need to wait for it)
+        synchronized (this.reclaimLock) {
             if (newMaxDiskSpaceB < 0) {
                 State.st.setMaxDiskSpaceB(-1L);
                 // infinite capacity => do nothing
@@ -486,14 +553,11 @@ public class Peer implements TestInterface {
         StringBuilder chunksSuccIsStoring = new StringBuilder();
         chunksSuccIsStoring.append("Chunks my succ is storing:\n");
 
-        long maxStorageSizeKB;
-        long filledB;
-
-        synchronized (State.st) {
-            for (var entry : State.st.getAllFilesInfo().entrySet()) {
-                String fileId = entry.getKey();
-                FileInfo fileInfo = entry.getValue();
+        for (var entry : State.st.getAllFilesInfo().entrySet()) {
+            String fileId = entry.getKey();
+            FileInfo fileInfo = entry.getValue();
 
+            synchronized (State.st.getFileLock(fileId)) {
                 if (fileInfo.isInitiator()) {
                     filesIInitiated.append("\tFile path: ").append(fileInfo.getFilePath()).append("\n");
                     filesIInitiated.append("\t\tFile ID: ").append(fileId).append("\n");
@@ -506,7 +570,7 @@ public class Peer implements TestInterface {
                     chunksIStore.append("\tFile ID: ").append(fileId).append("\n");
                     for (var chunkEntry : fileInfo.getAllChunks().entrySet()) {
                         int chunkNo = chunkEntry.getKey();
-                        int chunkId = fileInfo.getChunkId(chunkNo);
+                        ChordId chunkId = fileInfo.getChunkId(chunkNo);
                         boolean isStored = chunkEntry.getValue().p2 != -1;
                         if (!isStored)  // only show chunks we are currently storing
                             continue;
@@ -517,15 +581,15 @@ public class Peer implements TestInterface {
                     }
                 }
             }
+        }
 
-            for (var entry2 : State.st.getSuccChunksIds().entrySet())
-                chunksSuccIsStoring.append("\tFileId: ").append(entry2.getKey().p1)
-                        .append(" ChunkNo: ").append(entry2.getKey().p2)
-                        .append(" ChunkId: ").append(entry2.getValue()).append("\n");
+        for (var entry2 : State.st.getSuccChunksIds().entrySet())
+            chunksSuccIsStoring.append("\tFileId: ").append(entry2.getKey().p1)
+                    .append(" ChunkNo: ").append(entry2.getKey().p2)
+                    .append(" ChunkId: ").append(entry2.getValue()).append("\n");
 
-            maxStorageSizeKB = State.st.getMaxDiskSpaceKB();
-            filledB = State.st.getFilledStorageB();
-        }
+        long maxStorageSizeKB = State.st.getMaxDiskSpaceKB();
+        long filledB = State.st.getFilledStorageB();
 
         long filledKB = Math.round(filledB / 1000.0);
         return filesIInitiated
@@ -533,7 +597,10 @@ public class Peer implements TestInterface {
                 .append(chunksSuccIsStoring)
                 .append("Storing ").append(filledKB == 0 ? (filledB + "B") : (filledKB + "KB"))
                 .append(" of a maximum of ")
-                .append(maxStorageSizeKB < 0 ? "infinite " : maxStorageSizeKB).append("KB.")
+                .append(maxStorageSizeKB < 0 ? "infinite " : maxStorageSizeKB).append("KB.\n")
+                .append("TLS: ").append(this.chordController.getHandshakeStats()).append("\n")
+                .append("Buffers: ").append(this.chordController.getBufferPool()).append("\n")
+                .append("Lookups: ").append(this.chordController.getLookupCache())
                 .toString();
     }
 
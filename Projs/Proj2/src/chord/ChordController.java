@@ -2,28 +2,43 @@ package chord;
 
 import message.Message;
 import sender.MessageHandler;
+import sender.BufferPool;
+import sender.HandshakeStats;
 import sender.Observer;
 import sender.SockThread;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
 
 public class ChordController implements Observer {
+    // "direct": messages with a body (e.g.: PUTCHUNK) go straight to the owner of their id, found with a lookup.
+    // "forward": they hop through the ring like the others (each hop re-encrypts and re-sends the body)
+    private static final boolean DIRECT_PAYLOADS = !System.getProperty("chord.payloadRouting", "direct").equals("forward");
+
     private final InetAddress address;     // The peer's network address;
     private final int port;
     private final MessageHandler messageHandler;
     private final SockThread sock;
     private final ChordNode chordNode;
+    private final LookupCache lookupCache;
 
     public ChordController(InetAddress address, int port, Registry registry) throws IOException {
         this.address = address;
         this.port = port;
         this.sock = new SockThread(address, port, this);
         this.messageHandler = new MessageHandler(this.sock, this);
-        this.chordNode = new ChordNode(address, port, registry, messageHandler);
+        this.lookupCache = new LookupCache();
+        this.chordNode = new ChordNode(address, port, registry, messageHandler, this.lookupCache);
     }
 
     public InetAddress getAddress() {
@@ -47,11 +62,23 @@ public class ChordController implements Observer {
         this.sock.close();
     }
 
-    public int getId() {
+    public ChordId getId() {
         return this.chordNode.getId();
     }
 
-    public void addChunkFuture(String fileId, int currChunk, CompletableFuture<byte[]> fut) {
+    public HandshakeStats getHandshakeStats() {
+        return this.sock.getHandshakeStats();
+    }
+
+    public BufferPool getBufferPool() {
+        return this.sock.getBufferPool();
+    }
+
+    public LookupCache getLookupCache() {
+        return this.lookupCache;
+    }
+
+    public void addChunkFuture(String fileId, int currChunk, CompletableFuture<ByteBuffer> fut) {
         this.messageHandler.addChunkFuture(fileId, currChunk, fut);
     }
 
@@ -63,6 +90,77 @@ public class ChordController implements Observer {
         this.chordNode.join(node);
     }
 
+    /* LOOKUP */
+    /* the owner of id (null if the ring can't be reached) */
+    public NodeRef lookup(ChordId id) {
+        NodeRef owner = this.cachedOwner(id);
+        if (owner != null) return owner;
+        try {
+            NodeRef[] res = this.chordNode.lookup(id, this.chordNode.getSelf());
+            if (res == null) return null;
+            this.lookupCache.put(res[0], res[1]);
+            return res[1];
+        } catch (RemoteException e) {
+            System.err.println("Lookup of " + id + " failed: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /*
+     * the owners of ids, found in one pass around the ring: the ids are sorted clockwise from us and each lookup starts
+     * at the owner found for the previous one (which precedes it), so it only covers the gap between them. the ids of a
+     * range we already know (the cache) cost nothing. ids that couldn't be resolved are left out
+     */
+    public Map<ChordId, NodeRef> lookupAll(Collection<ChordId> ids) {
+        ChordId myId = this.getId();
+        List<ChordId> sorted = new ArrayList<>(ids);
+        sorted.sort((a, b) -> ChordId.compareDistance(myId, a, b));
+
+        Map<ChordId, NodeRef> res = new HashMap<>();
+        NodeRef from = this.chordNode.getSelf();
+        for (ChordId id : sorted) {
+            NodeRef owner = this.cachedOwner(id);
+            if (owner == null) {
+                try {
+                    NodeRef[] found = this.chordNode.lookup(id, from);
+                    if (found == null) continue;
+                    this.lookupCache.put(found[0], found[1]);
+                    owner = found[1];
+                } catch (RemoteException e) {
+                    System.err.println("Lookup of " + id + " failed: " + e.getMessage());
+                    from = this.chordNode.getSelf();  // the next one starts from us again
+                    continue;
+                }
+            }
+            res.put(id, owner);
+            from = owner;
+        }
+        return res;
+    }
+
+    /* the owner of id if we know it and it isn't suspected of being down */
+    private NodeRef cachedOwner(ChordId id) {
+        NodeRef owner = this.lookupCache.get(id);
+        if (owner != null && this.chordNode.isSuspected(owner)) {
+            this.lookupCache.remove(owner);
+            return null;
+        }
+        return owner;
+    }
+
+    /* our first n successors that we don't think are down (fewer if we don't know that many) */
+    public List<NodeRef> getLiveSuccessors(int n) {
+        List<NodeRef> res = new ArrayList<>();
+        NodeRef self = this.chordNode.getSelf();
+        for (NodeRef succ : this.chordNode.getSuccessors()) {
+            if (res.size() >= n) break;
+            if (succ == null || succ.equals(self) || res.contains(succ) || this.chordNode.isSuspected(succ))
+                continue;
+            res.add(succ);
+        }
+        return res;
+    }
+
     /* SEND/RECEIVE */
     @Override
     public void handle(Message message) {
@@ -73,40 +171,51 @@ public class ChordController implements Observer {
             messageHandler.handleMessage(message);
         } else { // message isn't for us
             System.out.println("Resending\n");
-            this.sendToNode(message); // resend it through the chord ring
+            this.resend(message);
         }
     }
 
-    public void send(Message message) {
+    public Future<?> send(Message message) {
         if (this.chordNode.messageIsForUs(message)) {
             System.out.println("\tNot sending message (its for me): " + message + "\n");
             messageHandler.handleMessage(message);
-        } else { // message isn't for us
-            System.out.println("Sending (ReHopping): " + message + "\n");
-            this.sendToNode(message); // resend it through the chord ring
+            return CompletableFuture.completedFuture(null);
         }
+
+        System.out.println("Sending: " + message + "\n");
+        return this.resend(message);
     }
 
-    private void sendToNode(Message message) {
-        ChordInterface nextHopDest = null;
-        try {
-            nextHopDest = this.chordNode.closestPrecedingNode(message.getDestId());
-        } catch (RemoteException e) {
+    /* sends a message that isn't for us towards the owner of its id */
+    private Future<?> resend(Message message) {
+        // we know who owns the id: one hop (if the ring changed meanwhile, the node forwards it)
+        NodeRef owner = this.cachedOwner(message.getDestId());
+        // only the lookup goes through the ring, not the body
+        if (owner == null && DIRECT_PAYLOADS && message.getBody() != null)
+            owner = this.lookup(message.getDestId());
+
+        if (owner != null && !owner.equals(this.chordNode.getSelf()))
+            return this.sendToOwner(message, owner);
+        // the lookup failed (or says it's us, but we don't think so): hop through the ring
+        return this.sendToNode(message);
+    }
+
+    private Future<?> sendToOwner(Message message, NodeRef owner) {
+        message.setDest(owner);
+        message.addToPath(owner.getId());
+        return this.sock.send(message);
+    }
+
+    private Future<?> sendToNode(Message message) {
+        // the next hop comes from our tables: no calls to other nodes until the message is sent
+        NodeRef nextHopDest = this.chordNode.closestPrecedingNode(message.getDestId());
+        if (nextHopDest.equals(this.chordNode.getSelf()))
+            nextHopDest = this.chordNode.getSuccessor();
+        if (nextHopDest == null) {
             System.err.println("Could not find successor for message " + message + ". Message not sent.");
-            e.printStackTrace();
-        }
-        assert nextHopDest != null;
-        try {
-            if (nextHopDest == this.chordNode)
-                nextHopDest = this.chordNode.getSuccessor();
-            message.setDest(nextHopDest);
-            message.addToPath(nextHopDest.getId());
-        } catch (RemoteException e) { // TODO Max num of tries?
-            System.err.println("Could connect to chosen next hop dest : TODO Max tries with timeout " + message);
-            e.printStackTrace();
+            return CompletableFuture.completedFuture(null);
         }
-
-        this.sock.send(message);
+        return this.sendToOwner(message, nextHopDest);
     }
 
     public void sendDirectly(Message message, InetAddress address, int port) {
@@ -117,24 +226,26 @@ public class ChordController implements Observer {
         this.sock.send(message);
     }
 
-    public void sendDirectly(Message message, ChordInterface node) throws RemoteException {
+    public void sendDirectly(Message message, NodeRef node) {
         this.sendDirectly(message, node.getAddress(), node.getPort());
     }
 
     public void sendToSucc(Message message) {
-        try {
-            this.sendDirectly(message, this.chordNode.getSuccessor());
-        } catch (RemoteException e) {
+        NodeRef succ = this.chordNode.getSuccessor();
+        if (succ == null) {
             System.out.println("Could not get succ to send him " + message);
+            return;
         }
+        this.sendDirectly(message, succ);
     }
 
     public void sendToPred(Message message) {
-        try {
-            this.sendDirectly(message, this.chordNode.getPredecessor());
-        } catch (RemoteException e) {
+        NodeRef pred = this.chordNode.getPredecessor();
+        if (pred == null) {
             System.err.println("Couldn't send REMOVED message to predecessor");
+            return;
         }
+        this.sendDirectly(message, pred);
     }
 
     @Override
@@ -0,0 +1,163 @@
+package chord;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/*
+ * An identifier of the ring: an unsigned number with BITS bits (chord.idBits, up to 256). Every peer of a ring has to
+ * use the same number of bits. The value is kept in 4 longs (w0 has the most significant bits) and the comparisons
+ * (inBetween, compareDistance) don't allocate, since they are done for every hop of every message.
+ */
+public final class ChordId implements Comparable<ChordId>, Serializable {
+    private static final long serialVersionUID = -1809977153255749580L;
+
+    public static final int MAX_BITS = 256;
+    public static final int BITS = Math.max(1, Math.min(MAX_BITS, configuredBits()));
+    public static final int BYTES = (BITS + 7) / 8;  // when encoded (see put)
+
+    private final long w0, w1, w2, w3;
+
+    private ChordId(long w0, long w1, long w2, long w3) {
+        // keep only the low BITS bits
+        this.w0 = w0 & mask(0);
+        this.w1 = w1 & mask(1);
+        this.w2 = w2 & mask(2);
+        this.w3 = w3 & mask(3);
+    }
+
+    private static int configuredBits() {
+        try {
+            return Integer.getInteger("chord.idBits", 160);
+        } catch (SecurityException e) {
+            // the rmiregistry loads this class (it is in ChordInterface) but can't read properties. it only keeps stubs
+            return 160;
+        }
+    }
+
+    /* the bits of word i (0 is the most significant) that are part of an id */
+    private static long mask(int i) {
+        int bits = BITS - (3 - i) * 64;
+        if (bits >= 64) return -1L;
+        if (bits <= 0) return 0L;
+        return (1L << bits) - 1;
+    }
+
+    public static ChordId of(long value) {
+        return new ChordId(0, 0, 0, value);
+    }
+
+    /* the id of some bytes: the low BITS bits of their SHA-256 */
+    public static ChordId hash(byte[] bytes) {
+        try {
+            ByteBuffer digest = ByteBuffer.wrap(MessageDigest.getInstance("SHA-256").digest(bytes));
+            return new ChordId(digest.getLong(), digest.getLong(), digest.getLong(), digest.getLong());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 isn't available", e);
+        }
+    }
+
+    private long word(int i) {
+        switch (i) {
+            case 0:
+                return this.w0;
+            case 1:
+                return this.w1;
+            case 2:
+                return this.w2;
+            default:
+                return this.w3;
+        }
+    }
+
+    /* (this + 2^i) mod 2^BITS: the start of the i-th finger */
+    public ChordId addPowerOfTwo(int i) {
+        long[] w = {this.w0, this.w1, this.w2, this.w3};
+        int word = 3 - i / 64;
+        long add = 1L << (i % 64);
+        for (; word >= 0 && add != 0; --word) {
+            long sum = w[word] + add;
+            // carry if the unsigned sum wrapped around
+            add = Long.compareUnsigned(sum, w[word]) < 0 ? 1 : 0;
+            w[word] = sum;
+        }
+        return new ChordId(w[0], w[1], w[2], w[3]);
+    }
+
+    @Override
+    public int compareTo(ChordId o) {
+        int c = Long.compareUnsigned(this.w0, o.w0);
+        if (c != 0) return c;
+        c = Long.compareUnsigned(this.w1, o.w1);
+        if (c != 0) return c;
+        c = Long.compareUnsigned(this.w2, o.w2);
+        if (c != 0) return c;
+        return Long.compareUnsigned(this.w3, o.w3);
+    }
+
+    /* is this in the interval (lh, rh) of the ring? (the bounds are included if asked) */
+    public boolean inBetween(ChordId lh, ChordId rh, boolean closedLeft, boolean closedRight) {
+        if (closedLeft && this.equals(lh)) return true;
+        if (closedRight && this.equals(rh)) return true;
+
+        if (this.equals(lh) || this.equals(rh))
+            return false;
+        int c = lh.compareTo(rh);
+        if (c == 0)
+            return true;
+        if (c < 0)
+            return this.compareTo(lh) > 0 && this.compareTo(rh) < 0;
+        return this.compareTo(rh) < 0 || this.compareTo(lh) > 0;
+    }
+
+    /* compares the clockwise distances from 'from' to a and to b (< 0 => a is closer) */
+    public static int compareDistance(ChordId from, ChordId a, ChordId b) {
+        // the ids before 'from' are after the ones from 'from' onwards (we have to go around the ring to reach them)
+        boolean aWraps = a.compareTo(from) < 0, bWraps = b.compareTo(from) < 0;
+        if (aWraps != bWraps) return aWraps ? 1 : -1;
+        return a.compareTo(b);
+    }
+
+    /* writes the id in BYTES bytes (big endian) */
+    public void put(ByteBuffer buf) {
+        for (int i = BYTES - 1; i >= 0; --i)
+            buf.put((byte) (this.word(3 - i / 8) >>> (8 * (i % 8))));
+    }
+
+    /* reads an id written by put */
+    public static ChordId get(ByteBuffer buf) {
+        long[] w = new long[4];
+        for (int i = BYTES - 1; i >= 0; --i)
+            w[3 - i / 8] |= (buf.get() & 0xFFL) << (8 * (i % 8));
+        return new ChordId(w[0], w[1], w[2], w[3]);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof ChordId)) return false;
+        ChordId id = (ChordId) o;
+        return this.w0 == id.w0 && this.w1 == id.w1 && this.w2 == id.w2 && this.w3 == id.w3;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(this.w0 ^ this.w1 ^ this.w2 ^ this.w3);
+    }
+
+    /* hexadecimal, without the leading zeros */
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        for (int i = 0; i < 4; ++i) {
+            long w = this.word(i);
+            if (res.length() == 0) {
+                if (w != 0) res.append(Long.toHexString(w));
+            } else {
+                res.append(String.format("%016x", w));
+            }
+        }
+        return res.length() == 0 ? "0" : res.toString();
+    }
+}
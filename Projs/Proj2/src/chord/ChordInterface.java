@@ -8,20 +8,20 @@ import java.rmi.RemoteException;
 import java.util.Map;
 
 public interface ChordInterface extends Remote {
-    int getId() throws RemoteException;
-    ChordInterface getPredecessor() throws RemoteException;
-    ChordInterface getSuccessor() throws RemoteException;
+    ChordId getId() throws RemoteException;
+    NodeRef getPredecessor() throws RemoteException;
+    NodeRef getSuccessor() throws RemoteException;
 
-    ChordInterface[] getSuccessors() throws RemoteException;
+    NodeRef[] getSuccessors() throws RemoteException;
 
-    ChordInterface findSuccessor(int id) throws RemoteException;
-    ChordInterface findPredecessor(int id) throws RemoteException;
-    ChordInterface closestPrecedingNode(int id) throws RemoteException;
+    NodeRef findSuccessor(ChordId id) throws RemoteException;
+    NodeRef findPredecessor(ChordId id) throws RemoteException;
+    NodeRef closestPrecedingNode(ChordId id) throws RemoteException;
 
 
-    void notify(ChordInterface n) throws RemoteException;
+    void notify(NodeRef n) throws RemoteException;
 
     InetAddress getAddress() throws RemoteException;
     int getPort() throws RemoteException;
-    Map<Pair<String, Integer>, Integer> getStoredChunksIds() throws RemoteException;
+    Map<Pair<String, Integer>, ChordId> getStoredChunksIds() throws RemoteException;
 }
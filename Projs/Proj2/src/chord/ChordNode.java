@@ -8,47 +8,63 @@ import utils.Pair;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.nio.ByteBuffer;
 import java.rmi.RemoteException;
 import java.rmi.registry.Registry;
 import java.rmi.server.UnicastRemoteObject;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.*;
 
-import static java.lang.Math.pow;
-
 public class ChordNode implements ChordInterface {
     private final InetAddress address;     // The peer's network address;
     private final int port;
-    private final Integer id;              // The peer's unique identifier
-    private final ChordInterface[] fingerTable;
-    private final ChordInterface[] succList;
+    private final ChordId id;              // The peer's unique identifier
+    private final NodeRef self;
+    // what we know about the other nodes (their ids don't change, so routing doesn't need to call them)
+    private final NodeRef[] fingerTable;
+    private final NodeRef[] succList;
+    private final FailureDetector failureDetector;
+    private final LookupCache lookupCache;
     private int nextFingerToFix;
-    private ChordInterface predecessor;
+    private volatile NodeRef predecessor;
     private MessageHandler messageHandler;
     public Registry registry;
 
-    public static int m = 7; // Number of bits of the addressing space
+    public static final int m = ChordId.BITS; // Number of bits of the addressing space
+    private static final int SUCC_LIST_SIZE = 7;  // 7 => 0% chance for all to fail at 50% failure rate
+
+    /* a call to another node */
+    private interface RemoteCall<T> {
+        T call(ChordInterface node) throws RemoteException;
+    }
 
-    public ChordNode(InetAddress address, int port, Registry registry, MessageHandler handler) throws IOException {
+    public ChordNode(InetAddress address, int port, Registry registry, MessageHandler handler, LookupCache lookupCache)
+            throws IOException {
         this.address = address;
         this.port = port;
         this.id = ChordNode.genId(address, port);
 
         this.registry = registry;
         this.nextFingerToFix = 0;
-        this.fingerTable = new ChordInterface[m];
-        this.succList = new ChordInterface[m];  // 7 => 0% chance for all to fail at 50% failure rate
+        this.fingerTable = new NodeRef[m];
+        this.succList = new NodeRef[SUCC_LIST_SIZE];
+        this.failureDetector = new FailureDetector();
+        this.lookupCache = lookupCache;
         this.messageHandler = handler;
 
+        ChordInterface stub = null;
+        try {
+            stub = (ChordInterface) UnicastRemoteObject.exportObject(this, 0);
+        } catch (Exception e) {
+            System.err.println("Failed setting up the access point for use by chord node.");
+            e.printStackTrace();
+            System.exit(1);
+        }
+        this.self = new NodeRef(this.id, address, port, stub);
+
         // init node as if he was the only one in the network
         this.predecessor = null;
-        this.setSuccessor(this);
+        this.setSuccessor(this.self);
 
-        ChordInterface stub;
         try {
-            stub = (ChordInterface) UnicastRemoteObject.exportObject(this, 0);
             registry.bind(this.id.toString(), stub);
             System.out.println("Registered node with id: " + this.id);
             System.out.println(this);
@@ -60,7 +76,7 @@ public class ChordNode implements ChordInterface {
     }
 
     @Override
-    public int getId() {
+    public ChordId getId() {
         return id;
     }
 
@@ -72,33 +88,61 @@ public class ChordNode implements ChordInterface {
         return port;
     }
 
+    public NodeRef getSelf() {
+        return this.self;
+    }
+
+    /* calls the node (we call ourselves directly). the failure detector learns from the outcome */
+    private <T> T call(NodeRef n, RemoteCall<T> remoteCall) throws RemoteException {
+        if (n.equals(this.self))
+            return remoteCall.call(this);
+        try {
+            T ret = remoteCall.call(n.getStub());
+            this.failureDetector.alive(n);
+            return ret;
+        } catch (RemoteException e) {
+            this.failureDetector.failed(n);
+            throw e;
+        }
+    }
+
+    boolean isSuspected(NodeRef n) {
+        return !n.equals(this.self) && this.failureDetector.isSuspected(n);
+    }
+
     /* CHORD */
     @Override
-    public ChordInterface getPredecessor() {
+    public NodeRef getPredecessor() {
         return predecessor;
     }
 
+    /* the first successor we don't think is down (see FailureDetector) */
     @Override
-    public ChordInterface getSuccessor() throws RemoteException {
+    public NodeRef getSuccessor() {
         boolean goneBad = false;
 
         for (int i = 0; i < this.succList.length; ++i) {
-            ChordInterface succ = this.succList[i];
+            NodeRef succ = this.succList[i];
             if (succ == null) break;
 
-            try {
-                succ.getId();
+            if (!this.isSuspected(succ)) {
                 if (goneBad) {
-                    this.reconcile(succ);
-
+                    try {
+                        this.reconcile(succ);
+                    } catch (RemoteException e) {
+                        this.succList[i] = null;
+                        continue;
+                    }
+
+                    // the ranges around the dead node changed owner
+                    this.lookupCache.clear();
                     // My successor died, call backup protocol on the chunks i think he was storing
                     this.backupSuccessorChunks();
                 }
                 return succ;
-            } catch (RemoteException ignored) {
-                goneBad = true;
-                this.succList[i] = null; // node is dead => bye bye
             }
+            goneBad = true;
+            this.succList[i] = null; // node is dead => bye bye
         }
 
         return null;
@@ -107,33 +151,35 @@ public class ChordNode implements ChordInterface {
     }
 
     @Override
-    public ChordInterface[] getSuccessors() throws RemoteException {
+    public NodeRef[] getSuccessors() {
         return this.succList;
     }
 
-    private void setSuccessor(ChordInterface n) {
-        this.succList[0] = n;
-        this.fingerTable[0] = this.succList[0];
-
-        Map<Pair<String, Integer>, Integer> succStoredChunksIds;
+    /* false if n can't be reached (it doesn't become our successor) */
+    private boolean setSuccessor(NodeRef n) {
+        Map<Pair<String, Integer>, ChordId> succStoredChunksIds;
         try {
-            succStoredChunksIds = n.getStoredChunksIds();
+            succStoredChunksIds = this.call(n, ChordInterface::getStoredChunksIds);
         } catch (RemoteException ignored) {
             System.err.println("Couldn't get stored chunks of my new successor");
-            return;
+            return false;
         }
-        State.st.replaceSuccChunk(succStoredChunksIds);
 
-        //this.fingerTable[0] = n;
+        if (!n.equals(this.succList[0]))
+            this.lookupCache.clear();  // n took some of the ids of our old successor
+        this.succList[0] = n;
+        this.fingerTable[0] = this.succList[0];
+        State.st.replaceSuccChunk(succStoredChunksIds);
+        return true;
     }
 
     @Override
-    public Map<Pair<String, Integer>, Integer> getStoredChunksIds() throws RemoteException {
+    public Map<Pair<String, Integer>, ChordId> getStoredChunksIds() throws RemoteException {
         return State.st.getAllStoredChunksId();
     }
 
-    private int getFingerStartId(int i) {
-        return (this.id + (int) pow(2, i)) % (int) Math.pow(2, m);
+    private ChordId getFingerStartId(int i) {
+        return this.id.addPowerOfTwo(i);
     }
 
     /**
@@ -141,17 +187,28 @@ public class ChordNode implements ChordInterface {
      */
     public void join(ChordInterface nprime) throws RemoteException {
         this.predecessor = null;
-        this.setSuccessor(nprime.findSuccessor(this.getId()));
+        if (!this.setSuccessor(nprime.findSuccessor(this.getId())))
+            throw new RemoteException("Couldn't reach our successor");
 
         // init finger table
-        for (int i = 0; i < m; ++i) {
-            int fingerStartId = this.getFingerStartId(i);
-            this.fingerTable[i] = nprime.findSuccessor(fingerStartId);
+        for (int i = 0; i < m; ) {
+            NodeRef finger = nprime.findSuccessor(this.getFingerStartId(i));
+            i = this.setFingers(i, finger);
         }
     }
 
-    private void reconcile(ChordInterface succ) throws RemoteException {
-        ChordInterface[] succSuccessors = succ.getSuccessors();
+    /* finger i is n, and so are the next ones that start before n (most of them when the ring has a lot more ids than
+     * nodes). returns the first finger that is left */
+    private int setFingers(int i, NodeRef n) {
+        ChordId nId = n.getId();
+        this.fingerTable[i++] = n;
+        while (i < m && this.getFingerStartId(i).inBetween(this.id, nId, false, true))
+            this.fingerTable[i++] = n;
+        return i;
+    }
+
+    private void reconcile(NodeRef succ) throws RemoteException {
+        NodeRef[] succSuccessors = this.call(succ, ChordInterface::getSuccessors);
         this.succList[0] = succ;
         System.arraycopy(succSuccessors, 0, this.succList, 1, this.succList.length - 1);
     }
@@ -162,26 +219,20 @@ public class ChordNode implements ChordInterface {
      * and tells the successor about it
      */
     public void stabilize() throws RemoteException {
-        // TODO if statement is needed?
-        //if (this.predecessor != null) {
-        //}
-
-        ChordInterface succ = this.getSuccessor();
+        NodeRef succ = this.getSuccessor();
         if (succ == null) return; // very bad
 
-        // update predecessor
-        ChordInterface me$ = succ.getPredecessor();
-        if (me$ != null) { // if pred knows about a succ
-            try {
-                if (ChordNode.inBetween(me$.getId(), this.id, succ.getId())) {
-                    this.setSuccessor(me$);
-                    succ = me$;
-                }
-            } catch (RemoteException ignored) {
-                // if we fail getting the me$ id, it is dead and we don't want it as a successor
-            }
+        // update predecessor (if succ doesn't answer, the failure detector knows it and we try the next one later)
+        NodeRef me$ = this.call(succ, ChordInterface::getPredecessor);
+        if (me$ != null && !this.isSuspected(me$) && me$.getId().inBetween(this.id, succ.getId(), false, false)) {
+            // if we can't get to me$, it is dead and we don't want it as a successor
+            if (this.setSuccessor(me$))
+                succ = me$;
         }
-        succ.notify(this); // notify successor about us
+        this.call(succ, n -> {
+            n.notify(this.self); // notify successor about us
+            return null;
+        });
 
         this.reconcile(succ);
     }
@@ -190,20 +241,13 @@ public class ChordNode implements ChordInterface {
      * Node n thinks it might be our predecessor.
      */
     @Override
-    public void notify(ChordInterface nprime) throws RemoteException {
-        int nprimeId = nprime.getId();
-
-        if (this.predecessor == null) {
+    public void notify(NodeRef nprime) {
+        NodeRef pred = this.predecessor;
+        // if our predecessor died, we accept the new one
+        if (pred == null || this.isSuspected(pred) || nprime.getId().inBetween(pred.getId(), this.id, false, false)) {
             this.predecessor = nprime;
-        } else {
-            try {
-                int predecessorId = this.predecessor.getId();
-                if (ChordNode.inBetween(nprimeId, predecessorId, this.id))
-                    this.predecessor = nprime;
-            } catch (RemoteException ignored) {
-                // if our predecessor died, we accept the new one
-                this.predecessor = nprime;
-            }
+            if (!nprime.equals(pred))
+                this.lookupCache.clear();  // a node joined (or left) behind us
         }
     }
 
@@ -214,224 +258,162 @@ public class ChordNode implements ChordInterface {
         if (nextFingerToFix >= m)
             nextFingerToFix = 0;
 
-        int succId = this.getFingerStartId(nextFingerToFix);
+        ChordId succId = this.getFingerStartId(nextFingerToFix);
         try {
             // System.out.println("I am " + this.id + " and I'm updating finger " + nextFingerToFix + ", id: " + succId);
-            fingerTable[nextFingerToFix] = this.findSuccessor(succId);
+            nextFingerToFix = this.setFingers(nextFingerToFix, this.findSuccessor(succId));
             // System.out.println("They tell me it's: " + fingerTable[nextFingerToFix].getId());
         } catch (RemoteException e) {
-            fingerTable[nextFingerToFix] = this;
+            fingerTable[nextFingerToFix] = this.self;
+            ++nextFingerToFix;
         }
-        ++nextFingerToFix;
     }
 
     /**
      * Ask node n to find the successor of id
      */
     @Override
-    public ChordInterface findSuccessor(int id) throws RemoteException {
-        ChordInterface nprime = this.findPredecessor(id);
-        if (nprime == null) return this;
-        return nprime.getSuccessor();
+    public NodeRef findSuccessor(ChordId id) throws RemoteException {
+        NodeRef[] nprime = this.lookup(id);
+        if (nprime == null) return this.self;
+        return nprime[1];
     }
 
     @Override
-    public ChordInterface findPredecessor(int id) throws RemoteException {
-        ChordInterface succ = this.getSuccessor();
-        if (succ == null) return null;
-
-        if (this.getId() == succ.getId())  // only node in network
-            return this;
-
-        ChordInterface ret = this;
-        while (!(ChordNode.inBetween(id, ret.getId(), ret.getSuccessor().getId(), false, true))) {
-            // System.out.println(id + " E (" + ret.getId() + ", " + ret.getSuccessor().getId() + ")");
-            ret = ret.closestPrecedingNode(id);
-        }
-        return ret;
+    public NodeRef findPredecessor(ChordId id) throws RemoteException {
+        NodeRef[] nprime = this.lookup(id);
+        if (nprime == null) return null;
+        return nprime[0];
     }
 
-    private int dist(ChordInterface dst) throws RemoteException {
-        int dstId = dst.getId();
-        if (dstId >= this.id) return dstId - this.id;
-        return dstId + (int) Math.pow(2, m) - this.id;
+    private NodeRef[] lookup(ChordId id) throws RemoteException {
+        return this.lookup(id, this.self);
     }
 
-    // finger table + successor list order from farthest to closest
-    private List<ChordInterface> getFullTable() {
-        // dedup nodes
-        Set<ChordInterface> nodeSet = new HashSet<>();
-        for (ChordInterface n : this.fingerTable) {
-            if (n == null) continue;
-            try {
-                // test if is alive
-                n.getId();
-                nodeSet.add(n);
-            } catch (RemoteException ignored) {
-            }
-        }
-        for (ChordInterface n : this.succList) {
-            if (n == null) continue;
-            try {
-                // test if is alive
-                n.getId();
-                nodeSet.add(n);
-            } catch (RemoteException ignored) {
-            }
+    /*
+     * the predecessor of id and its successor (the owner of the ids in (predecessor, successor]), starting the search
+     * at node 'from' (it should precede id: a batch of lookups sorted around the ring starts each one at the previous
+     * owner). each hop costs 2 calls (closestPrecedingNode and getSuccessor)
+     */
+    public NodeRef[] lookup(ChordId id, NodeRef from) throws RemoteException {
+        NodeRef succ = this.call(from, ChordInterface::getSuccessor);
+        if (succ == null) {
+            if (from.equals(this.self)) return null;
+            throw new RemoteException("Node " + from + " has no successor");
         }
 
-        List<ChordInterface> ret = new ArrayList<>(nodeSet);
-        // TODO race condition
-        ret.sort((arg0, arg1) -> {
-            try {
-                return this.dist(arg1) - this.dist(arg0);
-            } catch (RemoteException ignored) { // Compare someone who died => d = 0
-            }
-            return 0;
-        });
-
-        return ret;
+        if (succ.equals(from))  // only node in network
+            return new NodeRef[]{from, from};
+
+        NodeRef ret = from, retSucc = succ;
+        while (!id.inBetween(ret.getId(), retSucc.getId(), false, true)) {
+            // System.out.println(id + " E (" + ret.getId() + ", " + retSucc.getId() + ")");
+            NodeRef next = this.call(ret, n -> n.closestPrecedingNode(id));
+            // it doesn't know anyone closer (e.g.: the ones it knows are down): its successor is the next best thing
+            ret = next.equals(ret) ? retSucc : next;
+            retSucc = this.call(ret, ChordInterface::getSuccessor);
+            if (retSucc == null) throw new RemoteException("Node " + ret + " has no successor");
+        }
+        return new NodeRef[]{ret, retSucc};
     }
 
     /**
-     * Search the local table for the highest predecessor of id
+     * Search the local table for the highest predecessor of id (no calls to other nodes)
      */
     @Override
-    public ChordInterface closestPrecedingNode(int id) throws RemoteException {
-        List<ChordInterface> nodes = this.getFullTable();
-
-        for (ChordInterface n : nodes) {
-            int succId;
-            try { // is up
-                succId = n.getId();
-            } catch (RemoteException e) {
-                continue;
-            }
+    public NodeRef closestPrecedingNode(ChordId id) {
+        NodeRef ret = this.self;
+        ret = this.closestPrecedingNode(id, this.fingerTable, ret);
+        return this.closestPrecedingNode(id, this.succList, ret);
+    }
 
-            // is it is between us and them, it's the closest preceding node
-            if (ChordNode.inBetween(succId, this.id, id))
-                return n;
+    /* the node of nodes farthest from us that is still between us and id (ret if there isn't a farther one) */
+    private NodeRef closestPrecedingNode(ChordId id, NodeRef[] nodes, NodeRef ret) {
+        for (NodeRef n : nodes) {
+            if (n == null || this.isSuspected(n)) continue;
+            // is it is between us and them, it's a preceding node
+            ChordId nId = n.getId();
+            if (nId.inBetween(this.id, id, false, false) &&
+                    (ret == this.self || ChordId.compareDistance(this.id, nId, ret.getId()) > 0))
+                ret = n;
         }
-
-        return this;
+        return ret;
     }
 
     /**
      * Called periodically. checks whether predecessor has failed.
      */
     public void checkPredecessor() {
-        if (predecessor != null) {
+        NodeRef pred = this.predecessor;
+        if (pred != null) {
             try {
-                this.predecessor.getId();
+                this.call(pred, ChordInterface::getId);
             } catch (RemoteException e) {
                 this.predecessor = null;
+                this.lookupCache.clear();
             }
         }
     }
 
     /**
-     * Calculates SHA1 Algorithm and hashes string to an integer
+     * Hashes the string to an id of the ring
      */
-    public static int genId(String s) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(s.getBytes());
-            ByteBuffer wrapped = ByteBuffer.wrap(hash);
-            int div = (int) Math.floor(pow(2, ChordNode.m));
-            return Math.floorMod(wrapped.getInt(), div);
-        } catch (NoSuchAlgorithmException ignored) {
-        }
-        return -1;
+    public static ChordId genId(String s) {
+        return ChordId.hash(s.getBytes());
     }
 
-    public static int genId(InetAddress address, int port) {
+    public static ChordId genId(InetAddress address, int port) {
         return ChordNode.genId(address.getHostAddress() + ":" + port);
     }
 
-    static boolean inBetween(int num, int lh, int rh, boolean closedLeft, boolean closedRight) {
-        if (closedLeft && num == lh) return true;
-        if (closedRight && num == rh) return true;
-
-        if (num == lh || num == rh)
-            return false;
-        if (lh == rh)
-            return true;
-        if (num > lh && num < rh)
-            return true;
-        return lh > rh && (num < rh || num > lh);
-    }
-
-    static boolean inBetween(int num, int lf, int rh) {
-        return ChordNode.inBetween(num, lf, rh, false, false);
-    }
-
     public boolean messageIsForUs(Message message) {
-        if (this.getPredecessor() == null) // Assume message is for us if our predecessor bye
+        NodeRef pred = this.getPredecessor();
+        if (pred == null) // Assume message is for us if our predecessor bye
             return true;
 
-        try {
-            return message.destAddrKnown() || // the message was sent directly and without hops for us
-                    ChordNode.inBetween(message.getDestId(), this.predecessor.getId(), this.id, false, true);
-        } catch (RemoteException e) {
-            return true; // Assume that message is for us if chord ring is broken temporarily
-        }
+        return message.destAddrKnown() || // the message was sent directly and without hops for us
+                message.getDestId().inBetween(pred.getId(), this.id, false, true);
     }
 
     private void backupSuccessorChunks() {
-        synchronized (State.st) {
-            if (State.st.hasSuccChunks()) {
-                System.out.println("\tMy succ died");
-                for (var entry : State.st.getSuccChunksIds().entrySet()) {
-                    String fileId = entry.getKey().p1;
-                    Integer chunkNo = entry.getKey().p2, chunkId = entry.getValue();
-                    // We want to handle instead of sending because we can have the file
-                    this.messageHandler.handleMessage(new RemovedMsg(fileId, chunkNo, chunkId, chunkId, false));
-                }
-                State.st.clearSuccChunks();
+        if (State.st.hasSuccChunks()) {
+            System.out.println("\tMy succ died");
+            for (var entry : new ArrayList<>(State.st.getSuccChunksIds().entrySet())) {
+                String fileId = entry.getKey().p1;
+                Integer chunkNo = entry.getKey().p2;
+                ChordId chunkId = entry.getValue();
+                // We want to handle instead of sending because we can have the file
+                this.messageHandler.handleMessage(new RemovedMsg(fileId, chunkNo, chunkId, chunkId, false));
+                // only forget the chunks we handled (new STOREDs might have arrived meanwhile)
+                State.st.removeSuccChunk(fileId, chunkNo);
             }
         }
     }
 
+    private String describe(NodeRef n) {
+        if (n == null) return "null";
+        return n + (this.isSuspected(n) ? " (dead?)" : "");
+    }
+
     @Override
     public String toString() {
         StringBuilder res = new StringBuilder("FingerTable:\n");
         for (int i = 0; i < m; ++i) {
-            res.append("\t").append(i).append("(").append(this.getFingerStartId(i)).append("): ");
-            try {
-                res.append(this.fingerTable[i].getId()).append("\n");
-            } catch (RemoteException | NullPointerException e) {
-                res.append("Cant get to node\n");
-            }
+            // only the fingers that differ from the previous one
+            if (i > 0 && this.fingerTable[i] == this.fingerTable[i - 1]) continue;
+            res.append("\t").append(i).append("(").append(this.getFingerStartId(i)).append("): ")
+                    .append(this.describe(this.fingerTable[i])).append("\n");
         }
 
         res.append("Succ list:\n");
-        for (ChordInterface n : this.succList) {
-            res.append("\t");
-            if (n == null) {
-                res.append("null");
-            } else {
-                try {
-                    res.append(n.getId());
-                } catch (RemoteException e) {
-                    res.append("dead");
-                }
-            }
-            res.append("\n");
-        }
+        for (NodeRef n : this.succList)
+            res.append("\t").append(this.describe(n)).append("\n");
 
-        try {
-            res.append("Succ: ").append(this.getSuccessor().getId()).append("\n");
-        } catch (RemoteException e) {
-            res.append("Succ: Can't get succ\n");
-        }
-        if (predecessor != null) {
-            try {
-                res.append("Pred: ").append(predecessor.getId()).append("\n");
-            } catch (RemoteException e) {
-                res.append("Pred: Can't get pred\n");
-            }
-        } else res.append("Pred: Can't get pred\n");
+        NodeRef succ = this.getSuccessor();
+        res.append("Succ: ").append(succ == null ? "Can't get succ" : succ.toString()).append("\n");
+        NodeRef pred = this.predecessor;
+        res.append("Pred: ").append(pred == null ? "Can't get pred" : pred.toString()).append("\n");
 
         return "Chord id: " + id + "\n" + res + "\n";
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,34 @@
+package chord;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The nodes we think are down: the ones whose last call failed. The periodic tasks keep calling our successor and
+ * predecessor, so their state is always recent. Other nodes (e.g.: fingers) are only suspected for SUSPECT_TIMEOUT,
+ * after which routing tries them again.
+ */
+public class FailureDetector {
+    private static final long SUSPECT_TIMEOUT =
+            TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chord.suspectTimeout", 5000));
+
+    // id -> when the call failed (System.nanoTime())
+    private final Map<ChordId, Long> failures = new ConcurrentHashMap<>();
+
+    public void alive(NodeRef n) {
+        this.failures.remove(n.getId());
+    }
+
+    public void failed(NodeRef n) {
+        this.failures.put(n.getId(), System.nanoTime());
+    }
+
+    public boolean isSuspected(NodeRef n) {
+        Long failedAt = this.failures.get(n.getId());
+        if (failedAt == null) return false;
+        if (System.nanoTime() - failedAt < SUSPECT_TIMEOUT) return true;
+        this.failures.remove(n.getId(), failedAt);
+        return false;
+    }
+}
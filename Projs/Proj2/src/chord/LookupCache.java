@@ -0,0 +1,78 @@
+package chord;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * The owners we found recently: a lookup tells us that the ids in (predecessor, owner] belong to the owner, so one
+ * lookup answers every id of that range. The ranges expire after TTL (a node might have joined in the middle of one)
+ * and are all dropped when our own successor or predecessor changes. A stale entry only costs extra hops: the node
+ * that gets a message that isn't for it forwards it through the ring.
+ */
+public class LookupCache {
+    private static final long TTL = TimeUnit.MILLISECONDS.toNanos(Integer.getInteger("chord.lookupCacheTtl", 5000));
+
+    private static class Range {
+        final ChordId start;  // exclusive
+        final NodeRef owner;
+        final long expires;  // System.nanoTime()
+
+        Range(ChordId start, NodeRef owner, long expires) {
+            this.start = start;
+            this.owner = owner;
+            this.expires = expires;
+        }
+    }
+
+    // the end of the range (the owner's id) -> the range
+    private final ConcurrentNavigableMap<ChordId, Range> ranges = new ConcurrentSkipListMap<>();
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /* the owner of id, or null if we don't know it */
+    public NodeRef get(ChordId id) {
+        Map.Entry<ChordId, Range> entry = this.ranges.ceilingEntry(id);
+        // the range that goes around the end of the ring ends at the smallest id
+        if (entry == null) entry = this.ranges.firstEntry();
+        if (entry != null) {
+            Range range = entry.getValue();
+            if (System.nanoTime() - range.expires >= 0) {
+                this.ranges.remove(entry.getKey(), range);
+            } else if (id.inBetween(range.start, entry.getKey(), false, true)) {
+                this.hits.incrementAndGet();
+                return range.owner;
+            }
+        }
+        this.misses.incrementAndGet();
+        return null;
+    }
+
+    /* the ids in (predecessor, owner] belong to owner */
+    public void put(NodeRef predecessor, NodeRef owner) {
+        this.ranges.put(owner.getId(), new Range(predecessor.getId(), owner, System.nanoTime() + TTL));
+    }
+
+    public void remove(NodeRef owner) {
+        this.ranges.remove(owner.getId());
+    }
+
+    public void clear() {
+        this.ranges.clear();
+    }
+
+    public long getHits() {
+        return this.hits.get();
+    }
+
+    public long getMisses() {
+        return this.misses.get();
+    }
+
+    @Override
+    public String toString() {
+        return this.ranges.size() + " cached ranges, " + this.getHits() + " hits, " + this.getMisses() + " misses";
+    }
+}
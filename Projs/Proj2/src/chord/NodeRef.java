@@ -0,0 +1,58 @@
+package chord;
+
+import java.io.Serializable;
+import java.net.InetAddress;
+
+/*
+ * What we know about a node of the ring: its id, where it is and the stub used to call it. None of these change, so
+ * the finger table and the successor list keep them and routing doesn't have to ask the nodes anything (the remote
+ * methods return them too, so a hop is a single call).
+ */
+public class NodeRef implements Serializable {
+    private static final long serialVersionUID = -1497549545994697403L;
+
+    private final ChordId id;
+    private final InetAddress address;
+    private final int port;
+    private final ChordInterface stub;
+
+    public NodeRef(ChordId id, InetAddress address, int port, ChordInterface stub) {
+        this.id = id;
+        this.address = address;
+        this.port = port;
+        this.stub = stub;
+    }
+
+    public ChordId getId() {
+        return this.id;
+    }
+
+    public InetAddress getAddress() {
+        return this.address;
+    }
+
+    public int getPort() {
+        return this.port;
+    }
+
+    public ChordInterface getStub() {
+        return this.stub;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof NodeRef)) return false;
+        return this.id.equals(((NodeRef) o).id);
+    }
+
+    @Override
+    public int hashCode() {
+        return this.id.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return this.id.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/* streams the chunks of a file from disk, one chunk at a time (instead of holding the whole file in memory) */
+public class ChunkIterator implements Iterator<byte[]>, Closeable {
+    private final FileChannel channel;
+    private final long fileSize;
+    private final int chunkCount;
+    private int nextChunkNo;
+
+    public ChunkIterator(Path filePath) throws IOException {
+        this.channel = FileChannel.open(filePath, StandardOpenOption.READ);
+        this.fileSize = this.channel.size();
+        // a file whose size is a multiple of the chunk size ends with an empty chunk
+        this.chunkCount = (int) (this.fileSize / DigestFile.MAX_CHUNK_SIZE) + 1;
+        this.nextChunkNo = 0;
+    }
+
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /* the number of the chunk that will be returned by the next call to next() */
+    public int getNextChunkNo() {
+        return nextChunkNo;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return this.nextChunkNo < this.chunkCount;
+    }
+
+    @Override
+    public byte[] next() {
+        if (!this.hasNext()) throw new NoSuchElementException();
+
+        long position = (long) this.nextChunkNo * DigestFile.MAX_CHUNK_SIZE;
+        int chunkSize = (int) Math.min(DigestFile.MAX_CHUNK_SIZE, this.fileSize - position);
+        byte[] b = new byte[chunkSize];
+        ByteBuffer buf = ByteBuffer.wrap(b);
+        try {
+            // positional reads don't move the channel's position (and may return less than asked)
+            while (buf.hasRemaining()) {
+                if (this.channel.read(buf, position + buf.position()) < 0)
+                    throw new IOException("File got shorter while being read.");
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed reading chunk " + this.nextChunkNo, e);
+        }
+
+        ++this.nextChunkNo;
+        return b;
+    }
+
+    /* advances past the next chunk without reading it from disk */
+    public void skip() {
+        if (!this.hasNext()) throw new NoSuchElementException();
+        ++this.nextChunkNo;
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.channel.close();
+    }
+}
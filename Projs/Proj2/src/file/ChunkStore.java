@@ -0,0 +1,481 @@
+package file;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/*
+ * Log-structured chunk storage. Chunks are appended to segment files (segment-<n>.pack) and found through an
+ * in-memory index of (fileId, chunkNo) -> location. Deletions append tombstones, and segments where most of the
+ * records are dead get compacted (the live records are copied to the active segment).
+ * The index is saved to disk, so on startup we only need to replay what was appended after it was saved.
+ *
+ * Record format: fileId length (short) | fileId | chunkNo (int) | data length (int, -1 for tombstones) | data
+ */
+public class ChunkStore implements Closeable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".pack";
+    private static final String INDEX_NAME = "index";
+    private static final int INDEX_MAGIC = 0x43484b49;
+    private static final long SEGMENT_MAX_SIZE = 64L * 1024 * 1024;
+    private static final int TOMBSTONE = -1;  // data length of a tombstone
+    private static final int ALL_CHUNKS = -1;  // chunkNo of a tombstone that deletes a whole file
+
+    private final Path dir;
+    // fileId -> chunkNo -> where the chunk's data is
+    private final Map<String, Map<Integer, Location>> index;
+    // segment number -> segment file
+    private final TreeMap<Integer, FileChannel> segments;
+    // segment number -> bytes of the segment's records that are still live
+    private final Map<Integer, Long> liveRecordBytes;
+    private int activeSegment;
+    private long activeSize;
+    private long storedBytes;
+    // segment being scanned (used when replaying)
+    private int scanningSegment;
+    private boolean compacting;
+
+    private static class Location {
+        final int segment;
+        final long offset;  // of the data (not the record)
+        final int length;
+
+        Location(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private interface RecordVisitor {
+        void visit(String fileId, int chunkNo, int length, long dataOffset) throws IOException;
+    }
+
+    public ChunkStore(Path dir) throws IOException {
+        this.dir = dir;
+        this.index = new HashMap<>();
+        this.segments = new TreeMap<>();
+        this.liveRecordBytes = new HashMap<>();
+        this.storedBytes = 0;
+        this.compacting = false;
+        Files.createDirectories(dir);
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path p : stream) {
+                String name = p.getFileName().toString();
+                int segment = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(),
+                        name.length() - SEGMENT_SUFFIX.length()));
+                this.segments.put(segment, FileChannel.open(p, StandardOpenOption.READ, StandardOpenOption.WRITE));
+            }
+        }
+        if (this.segments.isEmpty())
+            this.segments.put(0, this.createSegment(0));
+        this.activeSegment = this.segments.lastKey();
+        this.activeSize = this.segments.get(this.activeSegment).size();
+
+        // load the saved index and replay whatever was appended after it was saved
+        long[] replayFrom = this.loadIndex();
+        for (int segment : new ArrayList<>(this.segments.tailMap((int) replayFrom[0], true).keySet())) {
+            long from = (segment == replayFrom[0]) ? replayFrom[1] : 0;
+            long end = this.scan(segment, from, this::replayRecord);
+            // a crash can leave a half written record at the end of the segment
+            if (end < this.segments.get(segment).size())
+                this.segments.get(segment).truncate(end);
+        }
+        this.activeSize = this.segments.get(this.activeSegment).size();
+
+        this.importLegacyChunks();
+        this.saveIndex();
+    }
+
+    /* STORAGE */
+    public synchronized boolean hasChunk(String fileId, int chunkNo) {
+        return this.find(fileId, chunkNo) != null;
+    }
+
+    /* size of a chunk. -1 if we don't have it */
+    public synchronized long getChunkSize(String fileId, int chunkNo) {
+        Location loc = this.find(fileId, chunkNo);
+        return loc == null ? -1 : loc.length;
+    }
+
+    /* sum of the size of every chunk stored */
+    public synchronized long getStoredBytes() {
+        return this.storedBytes;
+    }
+
+    /* stores a chunk. returns false if the chunk was already stored */
+    public synchronized boolean put(String fileId, int chunkNo, ByteBuffer data) throws IOException {
+        if (this.find(fileId, chunkNo) != null) return false;
+        this.append(fileId, chunkNo, data);
+        return true;
+    }
+
+    /* returns the size of the deleted chunk (0 if we didn't have it) */
+    public synchronized long deleteChunk(String fileId, int chunkNo) throws IOException {
+        Location loc = this.find(fileId, chunkNo);
+        if (loc == null) return 0;
+
+        this.appendTombstone(fileId, chunkNo);
+        this.removeLocation(fileId, chunkNo);
+        this.compactIfNeeded(Set.of(loc.segment));
+        return loc.length;
+    }
+
+    /* returns the size of all the deleted chunks */
+    public synchronized long deleteFile(String fileId) throws IOException {
+        Map<Integer, Location> chunks = this.index.get(fileId);
+        if (chunks == null) return 0;
+
+        Set<Integer> touchedSegments = new HashSet<>();
+        long ret = 0;
+        for (Location loc : chunks.values()) {
+            touchedSegments.add(loc.segment);
+            ret += loc.length;
+        }
+
+        this.appendTombstone(fileId, ALL_CHUNKS);
+        this.removeFileLocations(fileId);
+        this.compactIfNeeded(touchedSegments);
+        return ret;
+    }
+
+    /* READING */
+    public byte[] read(String fileId, int chunkNo) throws IOException {
+        while (true) {
+            Location loc;
+            FileChannel channel;
+            synchronized (this) {
+                loc = this.find(fileId, chunkNo);
+                if (loc == null) throw new FileNotFoundException("Chunk " + fileId + " " + chunkNo + " isn't stored.");
+                channel = this.segments.get(loc.segment);
+            }
+
+            try {
+                return this.readData(channel, loc).array();
+            } catch (ClosedChannelException e) {
+                // the segment was compacted while we were reading it => look for the chunk's new location
+            }
+        }
+    }
+
+    /* maps a chunk to memory (read-only). the mapping stays valid even if the segment is compacted */
+    public synchronized ByteBuffer map(String fileId, int chunkNo) throws IOException {
+        Location loc = this.find(fileId, chunkNo);
+        if (loc == null) throw new FileNotFoundException("Chunk " + fileId + " " + chunkNo + " isn't stored.");
+        if (loc.length == 0) return ByteBuffer.allocate(0);
+        return this.segments.get(loc.segment).map(FileChannel.MapMode.READ_ONLY, loc.offset, loc.length);
+    }
+
+    /* sends a chunk straight from its segment to the given channel */
+    public void transfer(String fileId, int chunkNo, WritableByteChannel target) throws IOException {
+        long sent = 0;
+        while (true) {
+            Location loc;
+            FileChannel channel;
+            synchronized (this) {
+                loc = this.find(fileId, chunkNo);
+                if (loc == null) throw new FileNotFoundException("Chunk " + fileId + " " + chunkNo + " isn't stored.");
+                channel = this.segments.get(loc.segment);
+            }
+
+            try {
+                while (sent < loc.length)
+                    sent += channel.transferTo(loc.offset + sent, loc.length - sent, target);
+                return;
+            } catch (ClosedChannelException e) {
+                // the segment was compacted while we were sending it => continue from the chunk's new location
+                if (!target.isOpen()) throw e;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.saveIndex();
+        for (FileChannel channel : this.segments.values())
+            channel.close();
+    }
+
+    /* INDEX */
+    private Location find(String fileId, int chunkNo) {
+        Map<Integer, Location> chunks = this.index.get(fileId);
+        if (chunks == null) return null;
+        return chunks.get(chunkNo);
+    }
+
+    private void putLocation(String fileId, int chunkNo, Location loc) {
+        Location old = this.index.computeIfAbsent(fileId, k -> new HashMap<>()).put(chunkNo, loc);
+        if (old != null) this.forget(fileId, old);
+        this.liveRecordBytes.merge(loc.segment, recordSize(fileId, loc.length), Long::sum);
+        this.storedBytes += loc.length;
+    }
+
+    private void removeLocation(String fileId, int chunkNo) {
+        Map<Integer, Location> chunks = this.index.get(fileId);
+        if (chunks == null) return;
+        Location loc = chunks.remove(chunkNo);
+        if (loc != null) this.forget(fileId, loc);
+        if (chunks.isEmpty()) this.index.remove(fileId);
+    }
+
+    private void removeFileLocations(String fileId) {
+        Map<Integer, Location> chunks = this.index.remove(fileId);
+        if (chunks == null) return;
+        for (Location loc : chunks.values())
+            this.forget(fileId, loc);
+    }
+
+    private void forget(String fileId, Location loc) {
+        this.liveRecordBytes.merge(loc.segment, -recordSize(fileId, loc.length), Long::sum);
+        this.storedBytes -= loc.length;
+    }
+
+    private void replayRecord(String fileId, int chunkNo, int length, long dataOffset) {
+        if (length != TOMBSTONE)
+            this.putLocation(fileId, chunkNo, new Location(this.scanningSegment, dataOffset, length));
+        else if (chunkNo == ALL_CHUNKS)
+            this.removeFileLocations(fileId);
+        else
+            this.removeLocation(fileId, chunkNo);
+    }
+
+    /* returns the point (segment, offset) from which the segments need to be replayed */
+    private long[] loadIndex() {
+        Path indexPath = this.dir.resolve(INDEX_NAME);
+        long[] fullReplay = new long[]{this.segments.firstKey(), 0};
+        if (!Files.exists(indexPath)) return fullReplay;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexPath)))) {
+            if (in.readInt() != INDEX_MAGIC) throw new IOException("Bad index file.");
+            int replaySegment = in.readInt();
+            long replayOffset = in.readLong();
+            int fileCount = in.readInt();
+            for (int i = 0; i < fileCount; ++i) {
+                String fileId = in.readUTF();
+                int chunkCount = in.readInt();
+                for (int j = 0; j < chunkCount; ++j) {
+                    int chunkNo = in.readInt();
+                    int segment = in.readInt();
+                    long offset = in.readLong();
+                    int length = in.readInt();
+                    if (!this.segments.containsKey(segment)) throw new IOException("Index refers to a missing segment.");
+                    this.putLocation(fileId, chunkNo, new Location(segment, offset, length));
+                }
+            }
+
+            if (!this.segments.containsKey(replaySegment)) throw new IOException("Index refers to a missing segment.");
+            return new long[]{replaySegment, replayOffset};
+        } catch (IOException e) {
+            System.err.println("Chunk store index is unusable. Rebuilding it from the segments.");
+            this.index.clear();
+            this.liveRecordBytes.clear();
+            this.storedBytes = 0;
+            return fullReplay;
+        }
+    }
+
+    private void saveIndex() throws IOException {
+        Path indexPath = this.dir.resolve(INDEX_NAME);
+        Path tmpPath = this.dir.resolve(INDEX_NAME + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmpPath)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(this.activeSegment);
+            out.writeLong(this.activeSize);
+            out.writeInt(this.index.size());
+            for (var fileEntry : this.index.entrySet()) {
+                out.writeUTF(fileEntry.getKey());
+                out.writeInt(fileEntry.getValue().size());
+                for (var chunkEntry : fileEntry.getValue().entrySet()) {
+                    Location loc = chunkEntry.getValue();
+                    out.writeInt(chunkEntry.getKey());
+                    out.writeInt(loc.segment);
+                    out.writeLong(loc.offset);
+                    out.writeInt(loc.length);
+                }
+            }
+        }
+        // the segments have to be on disk before an index that refers to them
+        for (FileChannel channel : this.segments.values())
+            channel.force(false);
+        Files.move(tmpPath, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /* SEGMENTS */
+    private Path segmentPath(int segment) {
+        return this.dir.resolve(SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private FileChannel createSegment(int segment) throws IOException {
+        return FileChannel.open(this.segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static long recordSize(String fileId, int length) {
+        return 2 + fileId.getBytes(StandardCharsets.UTF_8).length + 4 + 4 + Math.max(length, 0);
+    }
+
+    private static ByteBuffer recordHeader(String fileId, int chunkNo, int length) {
+        byte[] id = fileId.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(2 + id.length + 4 + 4)
+                .putShort((short) id.length).put(id).putInt(chunkNo).putInt(length).flip();
+    }
+
+    private ByteBuffer readData(FileChannel channel, Location loc) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(loc.length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, loc.offset + data.position()) < 0)
+                throw new EOFException("Chunk data is truncated.");
+        }
+        return data.flip();
+    }
+
+    /* appends a record to the active segment. returns the offset of its data */
+    private long appendRecord(String fileId, int chunkNo, int length, ByteBuffer data) throws IOException {
+        long size = recordSize(fileId, length);
+        if (this.activeSize > 0 && this.activeSize + size > SEGMENT_MAX_SIZE) {
+            int sealedSegment = this.activeSegment;
+            ++this.activeSegment;
+            this.segments.put(this.activeSegment, this.createSegment(this.activeSegment));
+            this.activeSize = 0;
+            this.compactIfNeeded(Set.of(sealedSegment));
+        }
+
+        FileChannel channel = this.segments.get(this.activeSegment);
+        long pos = this.activeSize;
+        ByteBuffer header = recordHeader(fileId, chunkNo, length);
+        while (header.hasRemaining())
+            pos += channel.write(header, pos);
+        long dataOffset = pos;
+        if (data != null) {
+            data = data.duplicate();
+            while (data.hasRemaining())
+                pos += channel.write(data, pos);
+        }
+
+        this.activeSize = pos;
+        return dataOffset;
+    }
+
+    private void append(String fileId, int chunkNo, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        long dataOffset = this.appendRecord(fileId, chunkNo, length, data);
+        this.putLocation(fileId, chunkNo, new Location(this.activeSegment, dataOffset, length));
+    }
+
+    private void appendTombstone(String fileId, int chunkNo) throws IOException {
+        this.appendRecord(fileId, chunkNo, TOMBSTONE, null);
+    }
+
+    /* visits the records of a segment, starting at the given offset. returns where the last complete record ends */
+    private long scan(int segment, long from, RecordVisitor visitor) throws IOException {
+        FileChannel channel = this.segments.get(segment);
+        long size = channel.size();
+        this.scanningSegment = segment;
+
+        channel.position(from);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+        long pos = from;
+        while (pos < size) {
+            try {
+                int idLen = in.readUnsignedShort();
+                if (idLen == 0) break;  // garbage (e.g.: zeros left by a crash)
+                byte[] id = in.readNBytes(idLen);
+                int chunkNo = in.readInt();
+                int length = in.readInt();
+                if (id.length != idLen || length < TOMBSTONE) break;
+
+                String fileId = new String(id, StandardCharsets.UTF_8);
+                long dataOffset = pos + 2 + idLen + 4 + 4;
+                if (dataOffset + Math.max(length, 0) > size) break;  // half written record
+                if (length > 0) in.skipNBytes(length);
+
+                visitor.visit(fileId, chunkNo, length, dataOffset);
+                pos = dataOffset + Math.max(length, 0);
+            } catch (EOFException e) {
+                break;
+            }
+        }
+        return pos;
+    }
+
+    /* COMPACTION */
+    private void compactIfNeeded(Set<Integer> segments) throws IOException {
+        if (this.compacting) return;
+        for (int segment : segments) {
+            if (segment == this.activeSegment || !this.segments.containsKey(segment)) continue;
+
+            long size = this.segments.get(segment).size();
+            long live = this.liveRecordBytes.getOrDefault(segment, 0L);
+            if (live * 2 < size)
+                this.compact(segment);
+        }
+    }
+
+    /* copies the live records of a (sealed) segment to the active segment and deletes it */
+    private void compact(int segment) throws IOException {
+        FileChannel channel = this.segments.get(segment);
+        // tombstones in the oldest segment have nothing left to delete
+        boolean isOldest = segment == this.segments.firstKey();
+        this.compacting = true;
+        try {
+            this.scan(segment, 0, (fileId, chunkNo, length, dataOffset) -> {
+                if (length == TOMBSTONE) {
+                    if (isOldest) return;
+                    // older segments might still have records deleted by this tombstone
+                    this.appendTombstone(fileId, chunkNo);
+                    // chunks stored after the tombstone need to be after its copy too
+                    Map<Integer, Location> chunks = this.index.get(fileId);
+                    if (chunks == null) return;
+                    for (var entry : new ArrayList<>(chunks.entrySet())) {
+                        if (chunkNo != ALL_CHUNKS && entry.getKey() != chunkNo) continue;
+                        FileChannel from = this.segments.get(entry.getValue().segment);
+                        this.append(fileId, entry.getKey(), this.readData(from, entry.getValue()));
+                    }
+                    return;
+                }
+
+                Location loc = this.find(fileId, chunkNo);
+                if (loc != null && loc.segment == segment && loc.offset == dataOffset)
+                    this.append(fileId, chunkNo, this.readData(channel, loc));
+            });
+        } finally {
+            this.compacting = false;
+        }
+
+        this.segments.remove(segment);
+        this.liveRecordBytes.remove(segment);
+        channel.close();
+        Files.delete(this.segmentPath(segment));
+        this.saveIndex();
+    }
+
+    /* LEGACY */
+    /* moves chunks stored with the old layout (one file per chunk: <fileId>/<chunkNo>) into the store */
+    private void importLegacyChunks() throws IOException {
+        File[] fileDirs = this.dir.toFile().listFiles(File::isDirectory);
+        if (fileDirs == null) return;
+
+        for (File fileDir : fileDirs) {
+            File[] chunkFiles = fileDir.listFiles();
+            if (chunkFiles == null) continue;
+            for (File chunkFile : chunkFiles) {
+                int chunkNo;
+                try {
+                    chunkNo = Integer.parseInt(chunkFile.getName());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                this.put(fileDir.getName(), chunkNo, ByteBuffer.wrap(Files.readAllBytes(chunkFile.toPath())));
+                chunkFile.delete();
+            }
+            fileDir.delete();
+        }
+    }
+}
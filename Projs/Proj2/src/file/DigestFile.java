@@ -1,25 +1,20 @@
 package file;
 
-import chord.ChordNode;
+import chord.ChordId;
 import state.State;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Objects;
-
-import static java.lang.Math.pow;
 
 public class DigestFile {
     public static final int MAX_CHUNK_SIZE = 30000;  // 64000;
@@ -30,8 +25,10 @@ public class DigestFile {
     public static String PEER_DIR = "." + File.separator + "peer" + File.separator;
     public static String FILE_DIR = PEER_DIR + "stored" + File.separator;
     public static String RESTORE_DIR = PEER_DIR + "restored" + File.separator;
+    // the chunks we store for other peers (see ChunkStore)
+    private static ChunkStore store = null;
 
-    public static void setFileDir(String id) {
+    public static void setFileDir(String id) throws IOException {
         PEER_DIR = "." + File.separator + ("peer-" + id) + File.separator;
         File peerDir = new File(PEER_DIR);
         peerDir.mkdirs();
@@ -43,6 +40,13 @@ public class DigestFile {
         RESTORE_DIR = PEER_DIR + "restored" + File.separator;
         File restDir = new File(RESTORE_DIR);
         restDir.mkdirs();
+
+        store = new ChunkStore(Paths.get(FILE_DIR));
+    }
+
+    /* saves the chunk store's index (so the next startup doesn't need to replay the segments) */
+    public static void close() throws IOException {
+        if (store != null) store.close();
     }
 
     /* file metadata used to get a hash */
@@ -81,16 +85,8 @@ public class DigestFile {
     }
 
     /* returns id of a chunk */
-    public static int getId(String fileId, int i) {
-        try {
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest((fileId + i).getBytes(StandardCharsets.US_ASCII));
-            ByteBuffer wrapped = ByteBuffer.wrap(hash);
-            int div = (int) Math.floor(pow(2, ChordNode.m));
-            return Math.floorMod(wrapped.getInt(), div);
-        } catch (NoSuchAlgorithmException ignored) {
-        }
-        return -1;
+    public static ChordId getId(String fileId, int i) {
+        return ChordId.hash((fileId + i).getBytes(StandardCharsets.US_ASCII));
     }
 
     /* checks if a file needs more chunks to be stored than the maximum allowed */
@@ -105,131 +101,66 @@ public class DigestFile {
         return (int) ((Files.size(filePath) / MAX_CHUNK_SIZE) + 1);
     }
 
-    /*  deletes a directory (that represents a file by containing its chunks) and its contents
+    /*  deletes all the chunks we have of a file
      *  returns true when the entry was present in the map
      */
     public static boolean deleteFile(String fileId) {
         if (State.st.getFileInfo(fileId) == null) return false;
         State.st.removeFileEntry(fileId);
 
-        File fileDir = new File(FILE_DIR + fileId);
-        if (fileDir.listFiles() != null) {
-            // to delete a directory, the directory must be empty
-            for (File f : Objects.requireNonNull(fileDir.listFiles())) {
-                State.st.updateStorageSize(-f.length());
-                f.delete();
-            }
+        try {
+            State.st.updateStorageSize(-store.deleteFile(fileId));
+        } catch (IOException e) {
+            System.err.println("Failed to delete the chunks of file " + fileId);
         }
-
-        fileDir.delete();
         return true;
     }
 
     public static long deleteChunk(String fileId, Integer chunkNo) {
-        File chunk = new File(FILE_DIR + fileId + File.separator + chunkNo.toString());
-        long chunkSize = chunk.length();
+        long chunkSize;
+        try {
+            chunkSize = store.deleteChunk(fileId, chunkNo);
+        } catch (IOException e) {
+            System.err.println("Failed to delete chunk " + fileId + " " + chunkNo);
+            return 0;
+        }
         State.st.updateStorageSize(-chunkSize);
-        chunk.delete();
-
-        // delete file dir if empty
-        File fileDir = new File(FILE_DIR + fileId);
-        if (Objects.requireNonNull(fileDir.listFiles()).length == 0)
-            fileDir.delete();
-
         return chunkSize;
     }
 
     public static long getChunkSize(String fileId, Integer chunkNo) {
-        Path path = Paths.get(FILE_DIR + fileId + File.separator + chunkNo.toString());
-        try {
-            return Files.size(path);
-        } catch (IOException e) {
-            return -1;
-        }
+        return store.getChunkSize(fileId, chunkNo);
     }
 
     public static long getStorageSize() {
-        long ret = 0;
-        File fileDir = new File(FILE_DIR);
-        if (fileDir.listFiles() == null) return ret;
-
-        // to delete a directory, the directory must be empty
-        for (File file : Objects.requireNonNull(fileDir.listFiles())) {
-            if (file.isDirectory()) {
-                for (File chunk : Objects.requireNonNull(file.listFiles())) {
-                    ret += chunk.length();
-                }
-            }
-        }
-        return ret;
+        if (store == null) return 0;
+        return store.getStoredBytes();
     }
 
     /* Write a chunk to a file */
     public static void writeChunk(String fileId, Integer chunkNo, byte[] b, int n) throws IOException {
-        String path = FILE_DIR + fileId + File.separator + chunkNo;
-        File f = new File(path);
-        f.getParentFile().mkdirs();
-        if (!f.createNewFile()) return;
-        if (n >= 0) {
-            try (FileOutputStream chunk = new FileOutputStream(path)) {
-                chunk.write(b, 0, n);
-            } catch (Exception e) {
-                System.out.println("no write :(" + path + " " + n);
-            }
-        }
+        store.put(fileId, chunkNo, ByteBuffer.wrap(b, 0, Math.max(n, 0)));
     }
 
-    /* reads the contents of a chunk */
-    public static byte[] readChunk(String chunkpath) throws IOException {
-        FileInputStream inputFile = new FileInputStream(FILE_DIR + chunkpath);
-        byte[] b = new byte[MAX_CHUNK_SIZE];
-        int len = inputFile.read(b, 0, MAX_CHUNK_SIZE);
-        if (len <= 0)
-            return new byte[0];
-        return Arrays.copyOfRange(b, 0, len);
+    public static void writeChunk(String fileId, int chunkNo, ByteBuffer chunk) throws IOException {
+        store.put(fileId, chunkNo, chunk);
     }
 
+    /* reads the contents of a chunk */
     public static byte[] readChunk(String fileId, int chunkNo) throws IOException {
-        return readChunk(fileId + File.separator + chunkNo);
+        return store.read(fileId, chunkNo);
     }
 
-    /* divide a file into chunks */
-    public static List<byte[]> divideFile(String filename, int replicationDegree) throws IOException {
+    /* divide a file into chunks (the chunks are read from disk as they are iterated) */
+    public static ChunkIterator divideFile(String filename, int replicationDegree) throws IOException {
         Path filePath = Paths.get(filename);
         if (surpassesMaxChunks(filePath))
             throw new IOException("File is too big (mas não te vou alocar).");
 
         String fileId = getHash(filename);
-        long fileSize = filePath.toFile().length();
-        FileInputStream inputStream = new FileInputStream(filePath.toFile());
-
         State.st.addFileEntry(fileId, filename, replicationDegree); // >:( // >:(
 
-        List<byte[]> ret = new ArrayList<>();
-        int i = 0;
-        long remainingSize = fileSize;
-        while (remainingSize > 0) {
-            int chunkSize;
-            if (MAX_CHUNK_SIZE <= remainingSize) {
-                chunkSize = MAX_CHUNK_SIZE;
-            } else {
-                chunkSize = (int) remainingSize;
-            }
-            byte[] b = new byte[chunkSize];
-            inputStream.read(b, 0, chunkSize);
-
-            remainingSize -= chunkSize;
-
-            State.st.declareChunk(fileId, i++);  // only declares if it isn't declared yet
-            ret.add(b);
-        }
-
-        if (fileSize % MAX_CHUNK_SIZE == 0) {
-            State.st.declareChunk(fileId, i);  // only declares if it isn't declared yet
-            ret.add(new byte[0]);
-        }
-
-        return ret;
+        return new ChunkIterator(filePath);
     }
 
     public static byte[] divideFileChunk(String filename, int chunkNo) throws IOException {
@@ -237,38 +168,31 @@ public class DigestFile {
         if (surpassesMaxChunks(filePath))
             throw new IOException("File is too big (mas não te vou alocar).");
 
-        FileInputStream inputStream = new FileInputStream(filePath.toFile());
-
-        long fileSize = filePath.toFile().length();
-        long toSkip = (long) chunkNo * MAX_CHUNK_SIZE;
-        long chunkSize = fileSize - toSkip;
-        if (chunkSize > MAX_CHUNK_SIZE)
-            chunkSize = MAX_CHUNK_SIZE;
-
-        if (chunkSize <= 0)
-            return new byte[0];
-
-        inputStream.skip(toSkip);
-
-        byte[] ret = new byte[(int) chunkSize];
-        inputStream.read(ret, 0, (int) chunkSize);
-        return ret;
+        try (FileChannel channel = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            long position = (long) chunkNo * MAX_CHUNK_SIZE;
+            long chunkSize = Math.min(MAX_CHUNK_SIZE, channel.size() - position);
+            if (chunkSize <= 0)
+                return new byte[0];
+
+            // positional reads => no need to skip over the chunks before this one
+            ByteBuffer ret = ByteBuffer.allocate((int) chunkSize);
+            while (ret.hasRemaining()) {
+                if (channel.read(ret, position + ret.position()) < 0)
+                    break;
+            }
+            return ret.array();
+        }
     }
 
-    /* reassemble a file from its chunks */
-    public static void assembleFile(String filename, List<byte[]> chunks) throws IOException {
+    /* creates (or truncates) the file a restore writes to */
+    public static RestoreSink createRestoreSink(String filename, int chunkCount) throws IOException {
         File f = new File(RESTORE_DIR + filename);
         f.getParentFile().mkdirs();
-        f.createNewFile();
-        FileOutputStream file = new FileOutputStream(f);
-
-        for (byte[] chunk : chunks)
-            file.write(chunk, 0, chunk.length);
+        return new RestoreSink(f.toPath(), chunkCount);
     }
 
     /* returns whether or not we have this chunk stored */
     public static boolean hasChunkInFileSystem(String fileId, Integer chunkNo) {
-        File file = new File(FILE_DIR + fileId + File.separator + chunkNo);
-        return file.exists();
+        return store.hasChunk(fileId, chunkNo);
     }
 }
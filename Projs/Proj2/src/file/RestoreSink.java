@@ -0,0 +1,85 @@
+package file;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+
+/*
+ * The file being restored. Each chunk is written at its place in the file (chunkNo * MAX_CHUNK_SIZE) as soon as it
+ * arrives, so chunks can arrive in any order and none of them has to wait in memory. A bitmap keeps track of the
+ * chunks that were written. The file is only forced to disk once, when all chunks are in (see finish); a sink that
+ * is closed before that deletes the file.
+ */
+public class RestoreSink implements Closeable {
+    private final Path path;
+    private final FileChannel channel;
+    private final int chunkCount;
+    private final BitSet written;  // guarded by this
+    private boolean finished;
+
+    RestoreSink(Path path, int chunkCount) throws IOException {
+        this.path = path;
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        this.chunkCount = chunkCount;
+        this.written = new BitSet(chunkCount);
+        this.finished = false;
+    }
+
+    /* writes a chunk (can be called by more than one thread at once). returns false if we already had the chunk */
+    public boolean write(int chunkNo, ByteBuffer chunk) throws IOException {
+        if (chunkNo < 0 || chunkNo >= this.chunkCount)
+            throw new IOException("Chunk " + chunkNo + " doesn't belong to the file");
+        synchronized (this) {
+            if (this.written.get(chunkNo)) return false;
+        }
+
+        ByteBuffer buf = chunk.duplicate();
+        long position = (long) chunkNo * DigestFile.MAX_CHUNK_SIZE;
+        while (buf.hasRemaining())
+            position += this.channel.write(buf, position);
+
+        synchronized (this) {
+            // someone else wrote the same chunk meanwhile (same content, same place)
+            if (this.written.get(chunkNo)) return false;
+            this.written.set(chunkNo);
+        }
+        return true;
+    }
+
+    public boolean write(int chunkNo, byte[] chunk) throws IOException {
+        return this.write(chunkNo, ByteBuffer.wrap(chunk));
+    }
+
+    public synchronized boolean hasChunk(int chunkNo) {
+        return this.written.get(chunkNo);
+    }
+
+    public synchronized int getWrittenCount() {
+        return this.written.cardinality();
+    }
+
+    public synchronized boolean isComplete() {
+        return this.written.cardinality() == this.chunkCount;
+    }
+
+    /* forces the restored file to disk. fails if a chunk is missing */
+    public synchronized void finish() throws IOException {
+        if (!this.isComplete())
+            throw new IOException("Missing chunk " + this.written.nextClearBit(0) + " of " + this.path.getFileName());
+        this.channel.force(true);
+        this.finished = true;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        this.channel.close();
+        if (!this.finished)
+            Files.deleteIfExists(this.path);
+    }
+}
@@ -1,30 +1,58 @@
 package message;
 
+import chord.ChordId;
 import file.DigestFile;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 
 public class ChunkMsg extends Message {
     public static final String type = "CHUNK";
     private final int chunkNo;
-    private byte[] chunk;
+    private ByteBuffer chunk;
 
-    public ChunkMsg(String fileId, int chunkNo, InetAddress sourceDest, int sourcePort, Integer destId)  {
+    public ChunkMsg(String fileId, int chunkNo, InetAddress sourceDest, int sourcePort, ChordId destId)  {
         super(fileId, sourceDest, sourcePort, destId);
 
         this.chunkNo = chunkNo;
         try {
-            this.chunk = DigestFile.readChunk(fileId, chunkNo);
+            this.chunk = ByteBuffer.wrap(DigestFile.readChunk(fileId, chunkNo));
         }
         catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public byte[] getChunk() {
-        return chunk;
+    ChunkMsg(ByteBuffer buf) throws IOException {
+        super(buf);
+        this.chunkNo = buf.getInt();
+        int chunkSize = buf.getInt();
+        this.chunk = chunkSize < 0 ? null : getSlice(buf, chunkSize);
+    }
+
+    @Override
+    protected int encodedSize() {
+        return super.encodedSize() + 2 * Integer.BYTES;
+    }
+
+    @Override
+    protected void encode(ByteBuffer buf) {
+        super.encode(buf);
+        buf.putInt(this.chunkNo);
+        // -1 => we couldn't read the chunk
+        buf.putInt(this.chunk == null ? -1 : this.chunk.remaining());
+    }
+
+    @Override
+    public ByteBuffer getBody() {
+        return this.getChunk();
+    }
+
+    /* null if the chunk couldn't be read */
+    public ByteBuffer getChunk() {
+        return this.chunk == null ? null : this.chunk.duplicate();
     }
 
     public int getChunkNo() {
@@ -39,6 +67,6 @@ public class ChunkMsg extends Message {
     @Override
     public String toString() {
         return super.toString() + (Message.DEBUG_MODE ? " FileId: " + fileId : "")
-                + " ChunkSize:" + chunk.length + " ChunkNo:" + chunkNo;
+                + " ChunkSize:" + (chunk == null ? -1 : chunk.remaining()) + " ChunkNo:" + chunkNo;
     }
 }
@@ -1,14 +1,22 @@
 package message;
 
+import chord.ChordId;
+
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class DeleteMsg extends Message {
     public static final String type = "DELETE";
 
-    public DeleteMsg(String fileId, InetAddress sourceDest, int sourcePort, int destId) {
+    public DeleteMsg(String fileId, InetAddress sourceDest, int sourcePort, ChordId destId) {
         super(fileId, sourceDest, sourcePort, destId);
     }
 
+    DeleteMsg(ByteBuffer buf) throws IOException {
+        super(buf);
+    }
+
     @Override
     public String getType() {
         return type;
@@ -1,27 +1,50 @@
 package message;
 
+import chord.ChordId;
 import file.DigestFile;
 
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class GetChunkMsg extends Message {
     public static final String type = "GETCHUNK";
     private final Integer chunkNo;
-    private int responsible;
+    private ChordId responsible;
     private boolean looped;
 
-    public GetChunkMsg(String fileId, int chunkNo, InetAddress sourceDest, int sourcePort, Integer destId)  {
+    public GetChunkMsg(String fileId, int chunkNo, InetAddress sourceDest, int sourcePort, ChordId destId)  {
         super(fileId, sourceDest, sourcePort, destId);
         this.chunkNo = chunkNo;
-        this.responsible = -1;
+        this.responsible = null;
         this.looped = false;
     }
 
-    public int getResponsible() {
+    GetChunkMsg(ByteBuffer buf) throws IOException {
+        super(buf);
+        this.chunkNo = buf.getInt();
+        this.responsible = getChordId(buf);
+        this.looped = buf.get() != 0;
+    }
+
+    @Override
+    protected int encodedSize() {
+        return super.encodedSize() + Integer.BYTES + chordIdSize(this.responsible) + 1;
+    }
+
+    @Override
+    protected void encode(ByteBuffer buf) {
+        super.encode(buf);
+        buf.putInt(this.chunkNo);
+        putChordId(buf, this.responsible);
+        buf.put((byte) (this.looped ? 1 : 0));
+    }
+
+    public ChordId getResponsible() {
         return responsible;
     }
 
-    public void setResponsible(int responsible) {
+    public void setResponsible(ChordId responsible) {
         this.responsible = responsible;
     }
 
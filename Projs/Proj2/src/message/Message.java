@@ -1,15 +1,17 @@
 package message;
 
 import chord.ChordController;
-import chord.ChordInterface;
+import chord.ChordId;
+import chord.NodeRef;
 
-import java.io.Serializable;
+import java.io.IOException;
 import java.net.InetAddress;
-import java.rmi.RemoteException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 
-public abstract class Message implements Serializable {
+public abstract class Message {
     public static final boolean DEBUG_MODE = false;
 
     protected String fileId;
@@ -18,10 +20,10 @@ public abstract class Message implements Serializable {
     private InetAddress sourceAddress;
     private int sourcePort;
     // IMP if destId is null it means that no hops are necessary and the destination is already known
-    private Integer destId;
-    private List<Integer> path;
+    private ChordId destId;
+    private List<ChordId> path;
 
-    public Message(String fileId, InetAddress sourceAddress, int sourcePort, Integer destId) {
+    public Message(String fileId, InetAddress sourceAddress, int sourcePort, ChordId destId) {
         this.fileId = fileId;
         this.path = new ArrayList<>();
         this.destId = destId;
@@ -29,8 +31,93 @@ public abstract class Message implements Serializable {
         this.sourcePort = sourcePort;
     }
 
+    /* reads the fields written by encode (see MessageCodec) */
+    protected Message(ByteBuffer buf) throws IOException {
+        this.fileId = getString(buf);
+        byte[] addr = new byte[buf.get()];
+        buf.get(addr);
+        this.sourceAddress = addr.length == 0 ? null : InetAddress.getByAddress(addr);
+        this.sourcePort = buf.getInt();
+        this.destId = getChordId(buf);
+        int pathLen = buf.getShort();
+        this.path = new ArrayList<>(pathLen);
+        for (int i = 0; i < pathLen; ++i)
+            this.path.add(getChordId(buf));
+    }
+
     public abstract String getType();
 
+    /* ENCODING */
+
+    /* number of bytes written by encode */
+    protected int encodedSize() {
+        int addrLen = this.sourceAddress == null ? 0 : this.sourceAddress.getAddress().length;
+        int size = stringSize(this.fileId) + 1 + addrLen + Integer.BYTES + chordIdSize(this.destId) + Short.BYTES;
+        for (ChordId id : this.path)
+            size += chordIdSize(id);
+        return size;
+    }
+
+    /* writes the message's fields (not the body) */
+    protected void encode(ByteBuffer buf) {
+        putString(buf, this.fileId);
+        byte[] addr = this.sourceAddress == null ? new byte[0] : this.sourceAddress.getAddress();
+        buf.put((byte) addr.length);
+        buf.put(addr);
+        buf.putInt(this.sourcePort);
+        putChordId(buf, this.destId);
+        buf.putShort((short) this.path.size());
+        for (ChordId id : this.path)
+            putChordId(buf, id);
+    }
+
+    /* the bytes sent after the fields (e.g.: the chunk), if any. not copied */
+    public ByteBuffer getBody() {
+        return null;
+    }
+
+    protected static int stringSize(String s) {
+        return Short.BYTES + s.getBytes(StandardCharsets.UTF_8).length;
+    }
+
+    protected static void putString(ByteBuffer buf, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    protected static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort()];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /* ids are their size (0 if null) followed by the id (see ChordId.put) */
+    protected static int chordIdSize(ChordId id) {
+        return 1 + (id == null ? 0 : ChordId.BYTES);
+    }
+
+    protected static void putChordId(ByteBuffer buf, ChordId id) {
+        buf.put((byte) (id == null ? 0 : ChordId.BYTES));
+        if (id != null) id.put(buf);
+    }
+
+    protected static ChordId getChordId(ByteBuffer buf) throws IOException {
+        int size = buf.get();
+        if (size == 0) return null;
+        // the ids of every peer of the ring have to have the same size
+        if (size != ChordId.BYTES) throw new IOException("Unexpected id size: " + size);
+        return ChordId.get(buf);
+    }
+
+    /* the next len bytes of the buffer (shared, not copied) */
+    protected static ByteBuffer getSlice(ByteBuffer buf, int len) {
+        ByteBuffer slice = buf.slice();
+        slice.limit(len);
+        buf.position(buf.position() + len);
+        return slice;
+    }
+
     /* GETTERS */
 
     public String getFileId() {
@@ -53,7 +140,7 @@ public abstract class Message implements Serializable {
         return destPort;
     }
 
-    public Integer getDestId() {
+    public ChordId getDestId() {
         return destId;
     }
 
@@ -71,20 +158,24 @@ public abstract class Message implements Serializable {
         this.destPort = port;
     }
 
-    public void setDest(ChordInterface nextHopDest) throws RemoteException {
+    public void setDest(NodeRef nextHopDest) {
         this.setDest(nextHopDest.getAddress(), nextHopDest.getPort());
     }
 
+    public void setSource(InetAddress address, int port) {
+        this.sourceAddress = address;
+        this.sourcePort = port;
+    }
+
     public void setSource(ChordController node) {
-        this.sourceAddress = node.getAddress();
-        this.sourcePort = node.getPort();
+        this.setSource(node.getAddress(), node.getPort());
     }
 
-    public void setDestId(Integer destId) {
+    public void setDestId(ChordId destId) {
         this.destId = destId;
     }
 
-    public void addToPath(Integer id) {
+    public void addToPath(ChordId id) {
         this.path.add(id);
     }
 
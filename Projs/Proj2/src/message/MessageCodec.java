@@ -0,0 +1,83 @@
+package message;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/*
+ * The format of the messages exchanged between peers:
+ *   version (1 byte) | type (1 byte) | the message's fields (see Message.encode) | body (e.g.: the chunk)
+ * Numbers are big endian and strings are a short with their size followed by their UTF-8 bytes. Only these messages
+ * can be decoded (unlike Java serialization, the received bytes can't create arbitrary objects).
+ */
+public class MessageCodec {
+    public static final byte VERSION = 1;
+
+    private static final byte PUTCHUNK = 1;
+    private static final byte GETCHUNK = 2;
+    private static final byte CHUNK = 3;
+    private static final byte STORED = 4;
+    private static final byte DELETE = 5;
+    private static final byte REMOVED = 6;
+
+    private static byte typeCode(Message message) {
+        switch (message.getType()) {
+            case PutChunkMsg.type:
+                return PUTCHUNK;
+            case GetChunkMsg.type:
+                return GETCHUNK;
+            case ChunkMsg.type:
+                return CHUNK;
+            case StoredMsg.type:
+                return STORED;
+            case DeleteMsg.type:
+                return DELETE;
+            case RemovedMsg.type:
+                return REMOVED;
+            default:
+                throw new IllegalArgumentException("Unknown message type: " + message.getType());
+        }
+    }
+
+    /* the encoded message: its header and its body (if it has one). the body isn't copied */
+    public static ByteBuffer[] encode(Message message) {
+        ByteBuffer header = ByteBuffer.allocate(2 + message.encodedSize());
+        header.put(VERSION);
+        header.put(typeCode(message));
+        message.encode(header);
+        header.flip();
+
+        ByteBuffer body = message.getBody();
+        if (body == null) return new ByteBuffer[]{header};
+        return new ByteBuffer[]{header, body};
+    }
+
+    /* decodes the remaining bytes of the buffer. the message's body keeps pointing to the buffer (not copied) */
+    public static Message decode(ByteBuffer buf) throws IOException {
+        try {
+            byte version = buf.get();
+            if (version != VERSION)
+                throw new IOException("Unsupported message version: " + version);
+
+            byte type = buf.get();
+            switch (type) {
+                case PUTCHUNK:
+                    return new PutChunkMsg(buf);
+                case GETCHUNK:
+                    return new GetChunkMsg(buf);
+                case CHUNK:
+                    return new ChunkMsg(buf);
+                case STORED:
+                    return new StoredMsg(buf);
+                case DELETE:
+                    return new DeleteMsg(buf);
+                case REMOVED:
+                    return new RemovedMsg(buf);
+                default:
+                    throw new IOException("Unknown message type: " + type);
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException | NegativeArraySizeException e) {
+            throw new IOException("Malformed message", e);
+        }
+    }
+}
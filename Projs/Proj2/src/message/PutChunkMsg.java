@@ -1,19 +1,74 @@
 package message;
 
+import chord.ChordId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public class PutChunkMsg extends Message {
     public static final String type = "PUTCHUNK";
     private final Integer chunkNo;
     private Integer replication;
-    private byte[] chunk;
+    private ByteBuffer chunk;
     private int seqNumber;
+    // a copy the responsible node fanned out: the chain ends at the node that stores it
+    private boolean fannedOut;
+
+    public PutChunkMsg(String fileId, Integer chunkNo, byte[] chunk, int replication, ChordId destId) {
+        this(fileId, chunkNo, ByteBuffer.wrap(chunk), replication, destId);
+    }
 
-    public PutChunkMsg(String fileId, Integer chunkNo, byte[] chunk, int replication, int destId) {
+    private PutChunkMsg(String fileId, Integer chunkNo, ByteBuffer chunk, int replication, ChordId destId) {
         super(fileId, null, -1, destId); // The source is set later by the responsible node when it receives this message
         this.fileId = fileId;
         this.chunkNo = chunkNo;
         this.replication = replication;
         this.chunk = chunk;
         this.seqNumber = replication;
+        this.fannedOut = false;
+    }
+
+    PutChunkMsg(ByteBuffer buf) throws IOException {
+        super(buf);
+        this.chunkNo = buf.getInt();
+        this.replication = buf.getInt();
+        this.seqNumber = buf.getInt();
+        this.fannedOut = buf.get() != 0;
+        this.chunk = getSlice(buf, buf.getInt());
+    }
+
+    @Override
+    protected int encodedSize() {
+        return super.encodedSize() + 4 * Integer.BYTES + 1;
+    }
+
+    @Override
+    protected void encode(ByteBuffer buf) {
+        super.encode(buf);
+        buf.putInt(this.chunkNo);
+        buf.putInt(this.replication);
+        buf.putInt(this.seqNumber);
+        buf.put((byte) (this.fannedOut ? 1 : 0));
+        buf.putInt(this.chunk.remaining());
+    }
+
+    @Override
+    public ByteBuffer getBody() {
+        return this.chunk.duplicate();
+    }
+
+    /* a copy for one of the nodes the chunk is fanned out to (the chunk's bytes are shared). its seqNumber is how many
+     * successors ahead of that node the first one that didn't get a copy is (it stores the chunk if the node can't) */
+    public PutChunkMsg replica(int seqNumber) {
+        PutChunkMsg replica = new PutChunkMsg(this.fileId, this.chunkNo, this.chunk.duplicate(), this.replication, null);
+        replica.setSource(this.getSourceAddress(), this.getSourcePort());
+        replica.seqNumber = seqNumber;
+        replica.fannedOut = true;
+        return replica;
+    }
+
+    public boolean isFannedOut() {
+        return fannedOut;
     }
 
     public void decreaseCurrentRep() {
@@ -28,8 +83,12 @@ public class PutChunkMsg extends Message {
         return chunkNo;
     }
 
-    public byte[] getChunk() {
-        return this.chunk;
+    public ByteBuffer getChunk() {
+        return this.chunk.duplicate();
+    }
+
+    public int getChunkSize() {
+        return this.chunk.remaining();
     }
 
     public int getReplication() {
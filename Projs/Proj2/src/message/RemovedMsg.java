@@ -1,18 +1,43 @@
 package message;
 
+import chord.ChordId;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 public class RemovedMsg extends Message {
     public static final String type = "REMOVED";
     private final Integer chunkNo;
     private final boolean toPredecessor;
-    private final int chunkId;
+    private final ChordId chunkId;
 
-    public RemovedMsg(String fileId, int chunkNo, int destId, int chunkId, boolean toPredecessor) {
+    public RemovedMsg(String fileId, int chunkNo, ChordId destId, ChordId chunkId, boolean toPredecessor) {
         super(fileId, null, -1, destId);
         this.chunkNo = chunkNo;
         this.chunkId = chunkId;
         this.toPredecessor = toPredecessor;
     }
 
+    RemovedMsg(ByteBuffer buf) throws IOException {
+        super(buf);
+        this.chunkNo = buf.getInt();
+        this.chunkId = getChordId(buf);
+        this.toPredecessor = buf.get() != 0;
+    }
+
+    @Override
+    protected int encodedSize() {
+        return super.encodedSize() + Integer.BYTES + chordIdSize(this.chunkId) + 1;
+    }
+
+    @Override
+    protected void encode(ByteBuffer buf) {
+        super.encode(buf);
+        buf.putInt(this.chunkNo);
+        putChordId(buf, this.chunkId);
+        buf.put((byte) (this.toPredecessor ? 1 : 0));
+    }
+
     public Integer getChunkNo() {
         return chunkNo;
     }
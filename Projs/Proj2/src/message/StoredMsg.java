@@ -1,27 +1,63 @@
 package message;
 
+import chord.ChordId;
+
+import java.io.IOException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 
 public class StoredMsg extends Message {
     public static final String type = "STORED";
     private final int chunkNo;
-    private final int chunkId;
+    private final ChordId chunkId;
+    // the reply goes to the node that fanned the chunk out, not to our predecessor (it isn't storing our chunks)
+    private final boolean toResponsible;
+
+    public StoredMsg(String fileId, InetAddress sourceDest, int sourcePort, int chunkNo, ChordId chunkId) {
+        this(fileId, sourceDest, sourcePort, chunkNo, chunkId, false);
+    }
 
-    public StoredMsg(String fileId, InetAddress sourceDest, int sourcePort, int chunkNo, int chunkId) {
+    public StoredMsg(String fileId, InetAddress sourceDest, int sourcePort, int chunkNo, ChordId chunkId,
+                     boolean toResponsible) {
         super(fileId, sourceDest, sourcePort, null); // destId isn't relevant, hops won't be made
         this.fileId = fileId;
         this.chunkNo = chunkNo;
         this.chunkId= chunkId;
+        this.toResponsible = toResponsible;
+    }
+
+    StoredMsg(ByteBuffer buf) throws IOException {
+        super(buf);
+        this.chunkNo = buf.getInt();
+        this.chunkId = getChordId(buf);
+        this.toResponsible = buf.get() != 0;
+    }
+
+    @Override
+    protected int encodedSize() {
+        return super.encodedSize() + Integer.BYTES + chordIdSize(this.chunkId) + 1;
+    }
+
+    @Override
+    protected void encode(ByteBuffer buf) {
+        super.encode(buf);
+        buf.putInt(this.chunkNo);
+        putChordId(buf, this.chunkId);
+        buf.put((byte) (this.toResponsible ? 1 : 0));
     }
 
     public Integer getChunkNo() {
         return chunkNo;
     }
 
-    public int getChunkId() {
+    public ChordId getChunkId() {
         return chunkId;
     }
 
+    public boolean isToResponsible() {
+        return toResponsible;
+    }
+
     @Override
     public String getType() {
         return type;
@@ -0,0 +1,94 @@
+package sender;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Reusable direct buffers for the TLS engines (the sizes come from their sessions, so there are only a few). Direct
+ * buffers are written to/read from the sockets without the copy the JDK makes for heap buffers, but they are expensive
+ * to allocate, so a connection gives them back when it closes. Buffers that don't fit back in the pool are left to
+ * the GC. The received messages get their own (heap) buffers, since they are handed to other threads. The counters
+ * show how much we still allocate.
+ */
+public class BufferPool {
+    private static final int POOL_SIZE = Integer.getInteger("net.bufferPoolSize", 64);  // per buffer size
+    private static final int ALIGNMENT = 1024;
+
+    private final Map<Integer, ArrayBlockingQueue<ByteBuffer>> free = new ConcurrentHashMap<>();
+    private final long created = System.nanoTime();
+    private final AtomicLong acquisitions = new AtomicLong(0);
+    private final AtomicLong allocations = new AtomicLong(0);
+    private final AtomicLong allocatedBytes = new AtomicLong(0);
+    private final AtomicLong messageBytes = new AtomicLong(0);
+
+    /* a cleared buffer that can hold at least size bytes */
+    public ByteBuffer acquire(int size) {
+        int capacity = (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        this.acquisitions.incrementAndGet();
+        ByteBuffer buf = this.freeList(capacity).poll();
+        if (buf == null) {
+            this.allocations.incrementAndGet();
+            this.allocatedBytes.addAndGet(capacity);
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        return buf.clear();
+    }
+
+    /* the buffer can't be used after this */
+    public void release(ByteBuffer buf) {
+        if (buf != null && buf.isDirect())
+            this.freeList(buf.capacity()).offer(buf);
+    }
+
+    /* a buffer for a received message (not pooled: the message keeps it) */
+    public ByteBuffer allocateMessage(int size) {
+        this.messageBytes.addAndGet(size);
+        return ByteBuffer.allocate(size);
+    }
+
+    private ArrayBlockingQueue<ByteBuffer> freeList(int capacity) {
+        return this.free.computeIfAbsent(capacity, c -> new ArrayBlockingQueue<>(POOL_SIZE));
+    }
+
+    public long getAcquisitions() {
+        return this.acquisitions.get();
+    }
+
+    /* number of buffers allocated so far (the other acquisitions reused one) */
+    public long getAllocations() {
+        return this.allocations.get();
+    }
+
+    public long getAllocatedBytes() {
+        return this.allocatedBytes.get();
+    }
+
+    public long getMessageBytes() {
+        return this.messageBytes.get();
+    }
+
+    /* bytes per second since the pool was created */
+    private double rate(long bytes) {
+        double secs = (System.nanoTime() - this.created) / (double) TimeUnit.SECONDS.toNanos(1);
+        return secs > 0 ? bytes / secs : 0;
+    }
+
+    public double getAllocationRate() {
+        return this.rate(this.getAllocatedBytes());
+    }
+
+    public double getMessageRate() {
+        return this.rate(this.getMessageBytes());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d buffers acquired, %d allocated (%dB, %.0fB/s). %dB of messages (%.0fB/s)",
+                this.getAcquisitions(), this.getAllocations(), this.getAllocatedBytes(), this.getAllocationRate(),
+                this.getMessageBytes(), this.getMessageRate());
+    }
+}
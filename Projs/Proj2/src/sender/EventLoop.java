@@ -0,0 +1,112 @@
+package sender;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/*
+ * A thread waiting on its own selector. The connections registered on it belong to it: all their reads, writes and
+ * TLS work happen on this thread, so they need no locks. Other threads hand it work through execute.
+ */
+public class EventLoop implements Runnable {
+    private final String name;
+    private final Selector selector;
+    private final Consumer<SelectionKey> handler;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean running = new AtomicBoolean(false);
+    private Thread thread;
+
+    public EventLoop(String name, Consumer<SelectionKey> handler) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.handler = handler;
+    }
+
+    public Selector getSelector() {
+        return this.selector;
+    }
+
+    public void start() {
+        this.thread = new Thread(this, this.name);
+        this.thread.start();
+    }
+
+    /* the connections' state only changes on their loop (checked with asserts) */
+    public boolean inLoop() {
+        return Thread.currentThread() == this.thread;
+    }
+
+    /* runs the task on the loop's thread */
+    public void execute(Runnable task) {
+        this.tasks.add(task);
+        this.selector.wakeup();
+    }
+
+    public void interrupt() {
+        this.running.set(false);
+        this.selector.wakeup();
+    }
+
+    public void close() {
+        this.interrupt();
+        try {
+            this.selector.close();
+        } catch (IOException e) {
+            System.err.println("Selector close threw an exception.");
+        }
+    }
+
+    @Override
+    public void run() {
+        // http://tutorials.jenkov.com/java-nio/selectors.html
+        if (this.thread == null) this.thread = Thread.currentThread();
+
+        this.running.set(true);
+        while (this.running.get()) {
+            try {
+                this.selector.select();
+            } catch (IOException e) {
+                continue;
+            } catch (ClosedSelectorException e) {
+                break;
+            }
+
+            Runnable task;
+            while ((task = this.tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> selectedKeys;
+            try {
+                selectedKeys = this.selector.selectedKeys().iterator();
+            } catch (ClosedSelectorException e) {
+                break;
+            }
+            while (selectedKeys.hasNext()) {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+                if (!key.isValid())
+                    continue;
+
+                try {
+                    this.handler.accept(key);
+                } catch (CancelledKeyException ignored) {
+                } catch (RuntimeException e) {
+                    // the other connections of the loop go on
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package sender;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Counts the TLS handshakes of a peer and how long they took. The latencies are kept in a histogram with power of 2
+ * buckets (in ms): <1, <2, <4, ..., <512 and the rest.
+ */
+public class HandshakeStats {
+    private static final int BUCKETS = 11;
+
+    private final AtomicLong full = new AtomicLong(0);
+    private final AtomicLong resumed = new AtomicLong(0);
+    private final AtomicLong failed = new AtomicLong(0);
+    private final AtomicLongArray latencies = new AtomicLongArray(BUCKETS);
+
+    public void record(boolean wasResumed, long elapsedNanos) {
+        if (wasResumed) this.resumed.incrementAndGet();
+        else this.full.incrementAndGet();
+
+        long ms = TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        int bucket = ms == 0 ? 0 : 64 - Long.numberOfLeadingZeros(ms);
+        this.latencies.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    public void recordFailure() {
+        this.failed.incrementAndGet();
+    }
+
+    public long getFull() {
+        return this.full.get();
+    }
+
+    public long getResumed() {
+        return this.resumed.get();
+    }
+
+    public long getFailed() {
+        return this.failed.get();
+    }
+
+    /* number of handshakes that took less than 2^i ms (the last bucket has the rest) */
+    public long getLatencyCount(int i) {
+        return this.latencies.get(i);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder res = new StringBuilder();
+        res.append(this.getFull()).append(" full, ")
+                .append(this.getResumed()).append(" resumed, ")
+                .append(this.getFailed()).append(" failed handshakes. Latencies:");
+        for (int i = 0; i < BUCKETS; ++i) {
+            long count = this.getLatencyCount(i);
+            if (count == 0) continue;
+            res.append(i == BUCKETS - 1 ? " >=" + (1 << (i - 1)) : " <" + (1 << i)).append("ms: ").append(count);
+        }
+        return res.toString();
+    }
+}
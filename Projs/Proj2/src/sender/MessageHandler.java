@@ -1,6 +1,8 @@
 package sender;
 
 import chord.ChordController;
+import chord.ChordId;
+import chord.NodeRef;
 import file.DigestFile;
 import message.*;
 import state.State;
@@ -8,26 +10,62 @@ import utils.Pair;
 
 import java.io.IOException;
 import java.net.InetAddress;
-import java.rmi.RemoteException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 public class MessageHandler {
+    // "chain": each replica stores the chunk and sends it to its successor (R sequential sends).
+    // "fanout": the responsible node sends it to its first successors at the same time and waits for their STOREDs
+    private static final boolean FAN_OUT = System.getProperty("chord.replication", "chain").equals("fanout");
+    // STOREDs a fan-out needs (0 => all the replicas). if fewer arrive before the timeout, the chain fills in the
+    // missing replicas. with a quorum below R-1, a fan-out that gets the quorum but not all the STOREDs isn't repaired
+    // (only logged): fewer messages, but the chunk can stay below its replication degree
+    private static final int FAN_OUT_QUORUM = Integer.getInteger("chord.fanoutQuorum", 0);
+    private static final int FAN_OUT_TIMEOUT = Integer.getInteger("chord.fanoutTimeout", 5000);  // ms
+
+    /* the replicas of a chunk that acknowledged a fan-out */
+    private static class FanOut {
+        final Set<InetSocketAddress> acks = ConcurrentHashMap.newKeySet();
+        final int replicas;
+        final int quorum;
+        final CompletableFuture<Void> done = new CompletableFuture<>();  // all the replicas acknowledged
+
+        FanOut(int replicas, int quorum) {
+            this.replicas = replicas;
+            this.quorum = quorum;
+        }
+
+        void ack(InetAddress address, int port) {
+            if (this.acks.add(new InetSocketAddress(address, port)) && this.acks.size() >= this.replicas)
+                this.done.complete(null);
+        }
+    }
+
     // private final SockThread sock;
     private final ChordController controller;
     InetAddress address;
     Integer port;
-    private final ConcurrentMap<Pair<String, Integer>, CompletableFuture<byte[]>> receivedChunks;
+    private final ConcurrentMap<Pair<String, Integer>, CompletableFuture<ByteBuffer>> receivedChunks;
+    private final ConcurrentMap<Pair<String, Integer>, FanOut> fanOuts;
+    private final Executor executor;  // for the fan-outs that time out (the chain makes calls to other nodes)
 
     public MessageHandler(SockThread sock, ChordController chordController) {
         this.controller = chordController;
         this.receivedChunks = new ConcurrentHashMap<>();
+        this.fanOuts = new ConcurrentHashMap<>();
+        this.executor = sock.getReceiveThreadPool();
         this.address = sock.getAddress();
         this.port = sock.getPort();
     }
 
-    public void addChunkFuture(String fileId, int currChunk, CompletableFuture<byte[]> fut) {
+    public void addChunkFuture(String fileId, int currChunk, CompletableFuture<ByteBuffer> fut) {
         this.receivedChunks.put(new Pair<>(fileId, currChunk), fut);
     }
 
@@ -43,14 +81,15 @@ public class MessageHandler {
             return; // We sent this message and it has looped through the network
         }
 
-        if (message.hasNoSource()) { // We are responsible for this message, mark us as responsible
+        boolean responsible = message.hasNoSource();
+        if (responsible) { // We are responsible for this message, mark us as responsible
             System.out.println("I am responsible for " + message);
             message.setSource(this.controller);
         }
 
         boolean iStoredTheChunk = false;
-        int chunkId = -1;
-        synchronized (State.st) {
+        ChordId chunkId = null;
+        synchronized (State.st.getFileLock(message.getFileId())) {
             // always register the existence of this file except when we want to reinit backup protocol
             State.st.addFileEntry(message.getFileId(), message.getReplication());
             State.st.declareChunk(message.getFileId(), message.getChunkNo());
@@ -59,13 +98,12 @@ public class MessageHandler {
             if (!isInitiator) {
                 // do not store duplicated chunks or if we surpass storage space
                 if (!State.st.amIStoringChunk(message.getFileId(), message.getChunkNo())) {
-                    if (State.st.updateStorageSize(message.getChunk().length)) {
+                    if (State.st.updateStorageSize(message.getChunkSize())) {
                         try {
-                            DigestFile.writeChunk(message.getFileId(), message.getChunkNo(),
-                                    message.getChunk(), message.getChunk().length);
+                            DigestFile.writeChunk(message.getFileId(), message.getChunkNo(), message.getChunk());
                         } catch (IOException e) {
                             e.printStackTrace();
-                            State.st.updateStorageSize(-message.getChunk().length);
+                            State.st.updateStorageSize(-message.getChunkSize());
                         }
 
                         // Add sequence number
@@ -84,7 +122,7 @@ public class MessageHandler {
         }
 
         // I am responsible and i stored the message
-        if (iStoredTheChunk && message.getSeqNumber() == message.getReplication()) {
+        if (iStoredTheChunk && !message.isFannedOut() && message.getSeqNumber() == message.getReplication()) {
             System.out.println("I am responsible for chunk " + message.getFileId() + " " + message.getChunkNo());
             message.setSource(this.controller);
         }
@@ -93,31 +131,87 @@ public class MessageHandler {
         if (iStoredTheChunk) {
             StoredMsg response = new StoredMsg(message.getFileId(), this.address, this.port,
                     message.getChunkNo(), chunkId);
-            InetAddress address;
-            int port;
-            try {
-                address = this.controller.getChordNode().getPredecessor().getAddress();
-                port = this.controller.getChordNode().getPredecessor().getPort();
-            } catch (RemoteException | NullPointerException e) {
+            NodeRef pred = this.controller.getChordNode().getPredecessor();
+            if (pred == null) {
                 System.err.println("Couldn't find predecessor to send him a STORED reply");
                 return;
             }
-            this.controller.sendDirectly(response, address, port);
+            this.controller.sendDirectly(response, pred);
+            if (message.isFannedOut()) {
+                // the node that fanned the chunk out is waiting for us too. we are the end of this chain
+                if (!pred.getAddress().equals(message.getSourceAddress()) || pred.getPort() != message.getSourcePort())
+                    this.controller.sendDirectly(new StoredMsg(message.getFileId(), this.address, this.port,
+                            message.getChunkNo(), chunkId, true), message.getSourceAddress(), message.getSourcePort());
+                return;
+            }
             message.decreaseCurrentRep(); // Update current rep in putchunk chain
         }
 
+        if (message.isFannedOut()) {
+            // we couldn't store it: the first successor that didn't get a copy stores it in our place
+            List<NodeRef> succs = this.controller.getLiveSuccessors(message.getSeqNumber());
+            if (succs.isEmpty())
+                System.err.println("Couldn't find a successor to store " + message);
+            else
+                this.controller.sendDirectly(message.replica(1), succs.get(succs.size() - 1));
+            return;
+        }
+
         // Propagate putchunks through successors
         // We don't need to resend the putchunk message further, we are last in the chain
         if (message.getSeqNumber() == 0)
             return;
 
-        this.controller.sendToSucc(message);
+        if (FAN_OUT && responsible)
+            this.fanOut(message);
+        else
+            this.controller.sendToSucc(message);
+    }
+
+    /*
+     * sends the chunk to as many successors as the replicas that are missing, all at once (each one is the end of its
+     * chain). if the quorum of STOREDs doesn't arrive in time, the chain fills in the missing replicas (the nodes that
+     * already have the chunk only update it). only the responsible node has to be in this mode
+     */
+    private void fanOut(PutChunkMsg message) {
+        int missing = message.getSeqNumber();
+        List<NodeRef> replicas = this.controller.getLiveSuccessors(missing);
+        if (replicas.size() < missing) { // we don't know enough nodes
+            this.controller.sendToSucc(message);
+            return;
+        }
+
+        Pair<String, Integer> key = new Pair<>(message.getFileId(), message.getChunkNo());
+        FanOut fanOut = new FanOut(missing, FAN_OUT_QUORUM > 0 ? Math.min(FAN_OUT_QUORUM, missing) : missing);
+        this.fanOuts.put(key, fanOut);
+        // the timeout fires on the JDK's shared timer thread: the chain runs on our pool
+        fanOut.done.orTimeout(FAN_OUT_TIMEOUT, TimeUnit.MILLISECONDS).whenCompleteAsync((v, e) -> {
+            this.fanOuts.remove(key, fanOut);
+            if (e == null) return;
+
+            int acks = fanOut.acks.size();
+            String stored = "Only " + acks + " of " + missing + " replicas stored chunk " + message.getChunkNo() +
+                    " of " + message.getFileId();
+            if (acks < fanOut.quorum) {
+                System.err.println(stored + ". Using the chain");
+                this.controller.sendToSucc(message);
+            } else {
+                System.err.println(stored + " (quorum of " + fanOut.quorum + " reached). " +
+                        "It stays below its replication degree");
+            }
+        }, this.executor);
+
+        for (int i = 0; i < missing; ++i)
+            this.controller.sendDirectly(message.replica(missing - i), replicas.get(i));
     }
 
     private void handleMsg(StoredMsg message) {
-        synchronized (State.st) {
+        FanOut fanOut = this.fanOuts.get(new Pair<>(message.getFileId(), message.getChunkNo()));
+        if (fanOut != null)
+            fanOut.ack(message.getSourceAddress(), message.getSourcePort());
+        // the others come from our successor
+        if (!message.isToResponsible())
             State.st.addSuccChunk(message.getFileId(), message.getChunkNo(), message.getChunkId());
-        }
     }
 
     private void handleMsg(ChunkMsg message) {
@@ -133,7 +227,7 @@ public class MessageHandler {
             return; // We sent this message and it has looped through the network
         }
 
-        synchronized (State.st) {
+        synchronized (State.st.getFileLock(message.getFileId())) {
             DigestFile.deleteFile(message.getFileId());
             State.st.removeSuccChunk(message.getFileId());
         }
@@ -151,20 +245,18 @@ public class MessageHandler {
             return; // We sent this message and it has looped through the network
         }
 
-        synchronized (State.st) {
-            if (State.st.amIStoringChunk(message.getFileId(), message.getChunkNo())) {
-                ChunkMsg response = new ChunkMsg(message.getFileId(), message.getChunkNo(),
-                        this.address, this.port, null);
-                response.setSource(this.controller);
-                this.controller.sendDirectly(response, message.getSourceAddress(), message.getSourcePort());
-                return;
-            }
+        if (State.st.amIStoringChunk(message.getFileId(), message.getChunkNo())) {
+            ChunkMsg response = new ChunkMsg(message.getFileId(), message.getChunkNo(),
+                    this.address, this.port, null);
+            response.setSource(this.controller);
+            this.controller.sendDirectly(response, message.getSourceAddress(), message.getSourcePort());
+            return;
         }
 
         if (message.destAddrKnown()) { // Sent to us
-            if (message.getResponsible() == -1) { // First time we are receiving the message
+            if (message.getResponsible() == null) { // First time we are receiving the message
                 message.setResponsible(this.controller.getId()); // Set us as responsible
-            } else if(message.getResponsible() == this.controller.getId()) { // The message has looped, send to source saying that the chunk isn't in the network
+            } else if(message.getResponsible().equals(this.controller.getId())) { // The message has looped, send to source saying that the chunk isn't in the network
                 message.setLooped();
                 this.controller.sendDirectly(message, message.getSourceAddress(), message.getSourcePort());
                 return;
@@ -197,7 +289,7 @@ public class MessageHandler {
         int replication = -1;
         String filePath = "";
         byte[] c = null;
-        synchronized (State.st) {
+        synchronized (State.st.getFileLock(message.getFileId())) {
             isStoringChunk = State.st.amIStoringChunk(message.getFileId(), message.getChunkNo());
             isInitiator = State.st.isInitiator(message.getFileId());
             if (isInitiator || isStoringChunk) {
@@ -221,7 +313,7 @@ public class MessageHandler {
 
         if (isInitiator || isStoringChunk) { // If we have the file that got deleted
             // We don't give the source so that the responsible node for this chunk fills it when it receives the msg
-            int chunkId = DigestFile.getId(message.getFileId(), message.getChunkNo());
+            ChordId chunkId = DigestFile.getId(message.getFileId(), message.getChunkNo());
             this.controller.send(new PutChunkMsg(message.getFileId(), message.getChunkNo(), c, replication, chunkId));
         } else {
             // Resend to next node in ring
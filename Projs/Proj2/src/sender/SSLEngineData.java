@@ -1,29 +1,31 @@
 package sender;
 
 import javax.net.ssl.SSLEngine;
-import java.io.ByteArrayOutputStream;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 
 public class SSLEngineData {
     public boolean isServer;
     public SSLEngine engine;
-    public ByteBuffer myAppData, myNetData, peerAppData, peerNetData;
-    public ByteArrayOutputStream content;
-    public ExecutorService thread;
+    public ByteBuffer myNetData, peerAppData, peerNetData;  // from the buffer pool
+    public ByteBuffer frame;  // the message being received (null between messages)
+    public EventLoop loop;  // does all of the connection's work
+    public SocketChannel channel;
+    public SelectionKey key;
+    public boolean handshaking;
+    public boolean closing;  // server: only our close_notify is left to send
+    public long handshakeStart;  // System.nanoTime()
 
-    public SSLEngineData(SSLEngine engine, ByteBuffer myAppData, ByteBuffer myNetData,
-                         ByteBuffer peerAppData, ByteBuffer peerNetData, boolean isServer) {
+    public SSLEngineData(SSLEngine engine, ByteBuffer myNetData, ByteBuffer peerAppData, ByteBuffer peerNetData,
+                         boolean isServer) {
         this.engine = engine;
-        this.myAppData = myAppData;
         this.myNetData = myNetData;
         this.peerAppData = peerAppData;
         this.peerNetData = peerNetData;
-        this.content = new ByteArrayOutputStream();
+        this.frame = null;
         this.isServer = isServer;
-
-        if (isServer) this.thread = Executors.newSingleThreadExecutor();
-        else this.thread = null;
+        this.handshaking = true;
+        this.closing = false;
     }
 }
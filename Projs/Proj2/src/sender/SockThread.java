@@ -1,36 +1,121 @@
 package sender;
 
 import message.Message;
+import message.MessageCodec;
+import utils.Threads;
 
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.*;
 import java.security.*;
 import java.security.cert.CertificateException;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The TLS connections of the peer. Each connection (the ones we open and the ones we accept) belongs to one of a fixed
+ * number of event loops, which does all of its work: connect, handshake, reads, writes and close. Nothing sleeps or
+ * spins waiting for the network, and no thread is created per connection. The received messages are handled by the
+ * receive pool (handlers can block, the loops can't).
+ */
 public class SockThread implements Runnable {
     private static final int MAX_CONNS = Runtime.getRuntime().availableProcessors() + 1;
     private static final String password = "123456";
-
-    private final AtomicBoolean running = new AtomicBoolean(false);
-    private final ExecutorService sendThreadPool = Executors.newFixedThreadPool(MAX_CONNS);
-    private final ExecutorService receiveThreadPool = Executors.newFixedThreadPool(MAX_CONNS);
+    // connections to other peers that aren't used for this long are closed
+    private static final int IDLE_TIMEOUT = Integer.getInteger("conn.idleTimeout", 30000);  // in ms
+    // how long we wait for the other side to answer our close_notify
+    private static final int CLOSE_TIMEOUT = 2000;  // in ms
+    // threads for the expensive parts of the TLS handshakes (e.g.: checking certificates)
+    private static final int HANDSHAKE_THREADS =
+            Integer.getInteger("tls.handshakeThreads", Runtime.getRuntime().availableProcessors());
+    private static final int EVENT_LOOPS =
+            Integer.getInteger("net.eventLoops", Math.min(4, Runtime.getRuntime().availableProcessors()));
+    // a bigger size can only be a broken (or malicious) peer
+    private static final int MAX_MESSAGE_SIZE = Integer.getInteger("net.maxMessageSize", 1 << 20);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ExecutorService receiveThreadPool = Threads.newPool(MAX_CONNS);
+    private final ExecutorService handshakeThreadPool = Threads.newPool(HANDSHAKE_THREADS);
+    private final HandshakeStats handshakeStats = new HandshakeStats();
+    private final BufferPool bufferPool = new BufferPool();
     private final ServerSocketChannel serverSocketChannel;
     private final InetAddress address;
     private final Integer port;
     private final Observer observer;
 
     private SSLContext sslc;
-    private final Selector selector;
+    // the first loop also accepts the connections (and hands them to the loops in turn)
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger(0);
+    // open connections to other peers (address:port => connection). messages to the same peer share the connection
+    private final ConcurrentHashMap<String, Connection> connections = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService idleEvictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "idle-connections");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private enum State {NEW, CONNECTING, HANDSHAKING, OPEN, CLOSING, CLOSED}
+
+    /* a message waiting to be sent: an int with its size followed by the encoded message */
+    private static class Pending {
+        final ByteBuffer[] data;
+        final CompletableFuture<Void> sent;
+        boolean retried;
+
+        Pending(ByteBuffer[] data) {
+            this.data = data;
+            this.sent = new CompletableFuture<>();
+            this.retried = false;
+        }
+    }
+
+    /* a connection to another peer (we are the client). everything but the queue belongs to its loop */
+    private static class Connection {
+        final InetAddress address;
+        final int port;
+        final String key;
+        final EventLoop loop;
+        final Deque<Pending> queue;  // guarded by this
+        boolean closed;  // guarded by this (no more messages are accepted)
+        final AtomicBoolean flushScheduled;
+        final CompletableFuture<Void> closeDone;
+        volatile long lastUsed;  // System.nanoTime()
+        State state;
+        SocketChannel channel;
+        SSLEngineData d;
+        Pending current;  // the message being sent
+
+        Connection(InetAddress address, int port, String key, EventLoop loop) {
+            this.address = address;
+            this.port = port;
+            this.key = key;
+            this.loop = loop;
+            this.queue = new ArrayDeque<>();
+            this.closed = false;
+            this.flushScheduled = new AtomicBoolean(false);
+            this.closeDone = new CompletableFuture<>();
+            this.lastUsed = System.nanoTime();
+            this.state = State.NEW;
+        }
+    }
 
     public SockThread(InetAddress address, Integer port, Observer chordNode) throws IOException {
         // bigger files
@@ -68,8 +153,13 @@ public class SockThread implements Runnable {
         this.serverSocketChannel = ServerSocketChannel.open();
         this.serverSocketChannel.configureBlocking(false);
         this.serverSocketChannel.socket().bind(new InetSocketAddress(address, port), MAX_CONNS);
-        this.selector = Selector.open();
-        this.serverSocketChannel.register(this.selector, SelectionKey.OP_ACCEPT);
+        this.loops = new EventLoop[EVENT_LOOPS];
+        for (int i = 0; i < EVENT_LOOPS; ++i)
+            this.loops[i] = new EventLoop("event-loop-" + i, this::handleEvent);
+        this.serverSocketChannel.register(this.loops[0].getSelector(), SelectionKey.OP_ACCEPT);
+
+        this.idleEvictor.scheduleWithFixedDelay(this::closeIdleConnections,
+                IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2, TimeUnit.MILLISECONDS);
     }
 
     public InetAddress getAddress() {
@@ -80,15 +170,38 @@ public class SockThread implements Runnable {
         return port;
     }
 
+    public HandshakeStats getHandshakeStats() {
+        return this.handshakeStats;
+    }
+
+    public BufferPool getBufferPool() {
+        return this.bufferPool;
+    }
+
+    /* where the received messages are handled (their handlers can block) */
+    public Executor getReceiveThreadPool() {
+        return this.receiveThreadPool;
+    }
+
     public void close() {
-        this.sendThreadPool.shutdown();
         this.receiveThreadPool.shutdown();
+        this.handshakeThreadPool.shutdown();
 
+        // say goodbye to the peers we are connected to (for a while)
+        List<CompletableFuture<Void>> closing = new ArrayList<>();
+        for (Connection conn : this.connections.values()) {
+            closing.add(conn.closeDone);
+            conn.loop.execute(() -> this.startClose(conn));
+        }
         try {
-            this.selector.close();
-        } catch (IOException e) {
-            System.err.println("Selector close threw an exception.");
+            CompletableFuture.allOf(closing.toArray(new CompletableFuture<?>[0]))
+                    .get(CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (Exception ignored) {
         }
+        this.idleEvictor.shutdownNow();
+
+        for (EventLoop loop : this.loops)
+            loop.close();
 
         try {
             this.serverSocketChannel.close();
@@ -98,536 +211,731 @@ public class SockThread implements Runnable {
     }
 
     public void interrupt() {
-        running.set(false);
+        for (EventLoop loop : this.loops)
+            loop.interrupt();
     }
 
     public void start() {
-        Thread worker = new Thread(this);
+        for (int i = 1; i < this.loops.length; ++i)
+            this.loops[i].start();
+        Thread worker = new Thread(this, "event-loop-0");
         worker.start();
     }
 
+    /* the loop of a new connection (they take turns) */
+    private EventLoop nextLoop() {
+        return this.loops[Math.floorMod(this.nextLoop.getAndIncrement(), this.loops.length)];
+    }
+
+    /* a bigger buffer (from the pool) with the contents of buf (write mode). buf goes back to the pool */
+    private ByteBuffer grow(ByteBuffer buf, int size) {
+        ByteBuffer b = this.bufferPool.acquire(size);
+        buf.flip();
+        b.put(buf);
+        this.bufferPool.release(buf);
+        return b;
+    }
+
+    /* dst has to fit a whole record after what it already has */
     private ByteBuffer handleOverflow(SSLEngine engine, ByteBuffer dst) {
-        // Maybe need to enlarge the peer application data buffer if
-        // it is too small, and be sure you've compacted/cleared the
-        // buffer from any previous operations.
         int appSize = engine.getSession().getApplicationBufferSize();
-        if (appSize > dst.capacity()) {
-            ByteBuffer b = ByteBuffer.allocate(appSize + dst.position());
-            dst.flip();
-            b.put(dst);
-            return b;
-        } else {
-            dst.clear();
-            return dst;
-        }
+        return this.grow(dst, Math.max(dst.position() + appSize, dst.capacity() * 2));
     }
 
-    private ByteBuffer handleUnderflow(SSLEngine engine, ByteBuffer src, ByteBuffer dst) {
-        // Not enough inbound data to process. Obtain more network data
-        // and retry the operation. You may need to enlarge the peer
-        // network packet buffer, and be sure you've compacted/cleared
-        // the buffer from any previous operations.
+    /* the rest of the record hasn't arrived yet. src is in write mode */
+    private ByteBuffer handleUnderflow(SSLEngine engine, ByteBuffer src) {
+        // You may need to enlarge the peer network packet buffer
         int netSize = engine.getSession().getPacketBufferSize();
-        // Resize buffer if needed.
-        if (netSize > dst.capacity()) {
-            ByteBuffer b = ByteBuffer.allocate(netSize);
-            src.flip();
-            b.put(src);
-            return b;
-        } else {
-            dst.clear();
-        }
+        if (netSize > src.capacity())
+            return this.grow(src, netSize);
         return src;
     }
 
+    /* dst had nothing to send (it is replaced by a bigger one) */
     private ByteBuffer handleWrapOverflow(SSLEngine engine, ByteBuffer dst) {
-        ByteBuffer buf;
         int netSize = engine.getSession().getPacketBufferSize();
-        if (dst.capacity() < netSize) {
-            buf = ByteBuffer.allocate(netSize);
-        } else {
-            buf = ByteBuffer.allocate(dst.capacity() * 2);
-        }
-        return buf;
+        this.bufferPool.release(dst);
+        return this.bufferPool.acquire(Math.max(netSize, dst.capacity() * 2));
     }
 
-    private void runDelegatedTasks(SSLEngine engine) {
+    /* the delegated tasks run on the handshake pool: only HANDSHAKE_THREADS handshakes do expensive work at once.
+     * then runs on the connection's loop once they are all done */
+    private void runDelegatedTasks(SSLEngineData d, Runnable then) {
+        List<Runnable> tasks = new ArrayList<>();
         Runnable task;
-        while ((task = engine.getDelegatedTask()) != null) {
-            // this.threadPool.execute(task);
-            task.run();
+        while ((task = d.engine.getDelegatedTask()) != null)
+            tasks.add(task);
+
+        AtomicInteger left = new AtomicInteger(tasks.size());
+        for (Runnable t : tasks) {
+            Runnable wrapped = () -> {
+                try {
+                    t.run();
+                } finally {
+                    if (left.decrementAndGet() == 0)
+                        d.loop.execute(then);
+                }
+            };
+            try {
+                this.handshakeThreadPool.execute(wrapped);
+            } catch (RejectedExecutionException e) {
+                wrapped.run();  // we are closing
+            }
         }
+        if (tasks.isEmpty())
+            d.loop.execute(then);
     }
 
-    private int doHandshake(SSLEngine engine, SocketChannel socketChannel,
-                            ByteBuffer myNetData, ByteBuffer peerNetData) throws IOException {
-        // See example 8-2 of the docs
-        // https://docs.oracle.com/en/java/javase/11/security/java-secure-socket-extension-jsse-reference-guide.html#GUID-AC6700ED-ADC4-41EA-B111-2AEF2CBF7744
+    /* resumed sessions don't exchange certificates: they reuse the ones from the first handshake */
+    private static boolean isResumed(SSLSession session) {
+        return session.getCreationTime() < session.getLastAccessedTime();
+    }
 
-        // Create byte buffers to use for holding application data
-        int appBufferSize = engine.getSession().getApplicationBufferSize() + 50;
-        ByteBuffer myAppData = ByteBuffer.allocate(appBufferSize);
-        ByteBuffer peerAppData = ByteBuffer.allocate(appBufferSize);
+    /* myNetData, peerAppData and peerNetData (see SSLEngineData) */
+    private ByteBuffer[] createBuffers(SSLEngine engine) {
+        SSLSession session = engine.getSession();
+        // allocate extra space to prevent some overflows
+        int appBufferMax = session.getApplicationBufferSize() + 50;
+        int netBufferMax = session.getPacketBufferSize();
 
-        engine.beginHandshake();
+        ByteBuffer[] ret = new ByteBuffer[3];
+        // my netData (read mode: what is left in it hasn't been sent yet)
+        ret[0] = this.bufferPool.acquire(netBufferMax).flip();
+        // peer appData (write mode: the beginning of the next message)
+        ret[1] = this.bufferPool.acquire(appBufferMax);
+        // peer netData (write mode: what is in it hasn't been unwrapped yet)
+        ret[2] = this.bufferPool.acquire(netBufferMax);
+        return ret;
+    }
 
-        SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
-        while (hs != SSLEngineResult.HandshakeStatus.FINISHED &&
-                hs != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
-            SSLEngineResult res;
-            switch (hs) {
-                case NEED_UNWRAP:
-                    if (socketChannel.read(peerNetData) < 0) {
-                        // end of stream => no more io
-                        engine.closeOutbound();
-                        try {
-                            engine.closeInbound();
-                        } catch (SSLException e) {
-                            System.err.println("Peer didn't follow the correct connection end procedure.");
-                        }
-                        return 1;
-                    }
+    /* the connection is closed: its buffers can be used by others */
+    private void releaseBuffers(SSLEngineData d) {
+        this.bufferPool.release(d.myNetData);
+        this.bufferPool.release(d.peerAppData);
+        this.bufferPool.release(d.peerNetData);
+        d.myNetData = d.peerAppData = d.peerNetData = null;
+        d.frame = null;
+    }
 
-                    // process incoming handshake data
-                    peerNetData.flip();
-                    res = engine.unwrap(peerNetData, peerAppData);
-                    peerNetData.compact();
-                    hs = res.getHandshakeStatus();
+    /* writes what is left in myNetData. false if the socket can't take it all now (OP_WRITE tells us when it can) */
+    private boolean flushNetData(SSLEngineData d) throws IOException {
+        while (d.myNetData.hasRemaining()) {
+            if (d.channel.write(d.myNetData) == 0) {
+                d.key.interestOps(d.key.interestOps() | SelectionKey.OP_WRITE);
+                return false;
+            }
+        }
+        d.key.interestOps(d.key.interestOps() & ~SelectionKey.OP_WRITE);
+        return true;
+    }
 
-                    // check status
+    /* HANDSHAKE (see example 8-2 of the docs, but without blocking)
+     * https://docs.oracle.com/en/java/javase/11/security/java-secure-socket-extension-jsse-reference-guide.html#GUID-AC6700ED-ADC4-41EA-B111-2AEF2CBF7744
+     * advances the handshake as much as possible with the data we have. called again when the socket is ready */
+    private void stepHandshake(SSLEngineData d) throws IOException {
+        SSLEngineResult.HandshakeStatus hs = d.engine.getHandshakeStatus();
+        while (true) {
+            // IMP: ensure that any previous net data in myNetData has been sent to the peer
+            if (!this.flushNetData(d)) return;
+
+            SSLEngineResult res;
+            switch (hs) {
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    this.handshakeDone(d);
+                    return;
+                case NEED_WRAP:
+                    // generate handshake data to send
+                    d.myNetData.clear();
+                    res = d.engine.wrap(EMPTY, d.myNetData);
+                    d.myNetData.flip();
                     switch (res.getStatus()) {
                         case OK:
-                            // do nothing ?
                             break;
                         case BUFFER_OVERFLOW:
-                            // the client maximum fragment size config does not work?
-                            peerAppData = this.handleOverflow(engine, peerAppData);
-                            break;
-                        case BUFFER_UNDERFLOW:
-                            // bad packet, or the client maximum fragment size config does not work?
-                            // we can increase the size
-                            peerNetData = this.handleUnderflow(engine, peerNetData, peerAppData);
-                            // Obtain more inbound network data for src,
-                            // then retry the operation.
+                            d.myNetData = this.handleWrapOverflow(d.engine, d.myNetData).flip();
                             break;
                         case CLOSED:
-                            engine.closeOutbound();
-                            return 0;
+                            throw new SSLException("Connection closed during the handshake");
                         default:
                             throw new IllegalStateException("Unexpected value: " + res.getStatus());
                     }
-                    break;
-                case NEED_WRAP:
-                    // IMP: ensure that any previous net data in myNetData has been
-                    // sent to the peer (done when sending)
-
-                    // clear the rest of the buffer
-                    myNetData.clear();
-
-                    // generate handshake data to send (if possible)
-                    res = engine.wrap(myAppData, myNetData);
                     hs = res.getHandshakeStatus();
+                    break;
+                case NEED_UNWRAP:
+                case NEED_UNWRAP_AGAIN:
+                    // process incoming handshake data
+                    d.peerNetData.flip();
+                    res = d.engine.unwrap(d.peerNetData, d.peerAppData);
+                    d.peerNetData.compact();
                     switch (res.getStatus()) {
                         case OK:
-                            myNetData.flip();
-                            while (myNetData.hasRemaining())
-                                socketChannel.write(myNetData);
+                            hs = res.getHandshakeStatus();
                             break;
                         case BUFFER_OVERFLOW:
-                            // the client maximum fragment size config does not work?
-                            // we can increase the size
-                            myNetData = this.handleWrapOverflow(engine, myNetData);
+                            d.peerAppData = this.handleOverflow(d.engine, d.peerAppData);
                             break;
                         case BUFFER_UNDERFLOW:
-                            throw new SSLException("WTF UNDERFLOW");
+                            d.peerNetData = this.handleUnderflow(d.engine, d.peerNetData);
+                            int n = d.channel.read(d.peerNetData);
+                            if (n < 0)
+                                throw new EOFException("End of stream during the handshake");
+                            if (n == 0) {
+                                // OP_READ tells us when there is more
+                                d.key.interestOps(SelectionKey.OP_READ);
+                                return;
+                            }
+                            break;
                         case CLOSED:
-                            engine.closeOutbound();
-                            return 0;
+                            throw new SSLException("Connection closed during the handshake");
                         default:
                             throw new IllegalStateException("Unexpected value: " + res.getStatus());
                     }
                     break;
                 case NEED_TASK:
-                    runDelegatedTasks(engine);
-                    hs = engine.getHandshakeStatus();
-                    break;
+                    d.key.interestOps(0);
+                    this.runDelegatedTasks(d, () -> this.resumeHandshake(d));
+                    return;
                 default:
                     throw new IllegalStateException("Unexpected value: " + hs);
             }
         }
+    }
 
-        return 0;
+    private void resumeHandshake(SSLEngineData d) {
+        // it might have been closed while the delegated tasks ran
+        if (!d.channel.isOpen()) return;
+        try {
+            this.stepHandshake(d);
+        } catch (IOException | RuntimeException e) {
+            this.handshakeFailed(d);
+        }
     }
 
-    private ByteBuffer[] createBuffers(SSLEngine engine) {
-        SSLSession session = engine.getSession();
-        // allocate extra space to prevent some overflows
-        int appBufferMax = session.getApplicationBufferSize() + 50;
-        int netBufferMax = session.getPacketBufferSize();
+    private void handshakeDone(SSLEngineData d) {
+        d.handshaking = false;
+        this.handshakeStats.record(isResumed(d.engine.getSession()), System.nanoTime() - d.handshakeStart);
 
-        ByteBuffer[] ret = new ByteBuffer[4];
-        // my appData
-        ret[0] = ByteBuffer.allocate(appBufferMax);
-        // my netData
-        ret[1] = ByteBuffer.allocate(netBufferMax);
-        // peer appData
-        ret[2] = ByteBuffer.allocate(appBufferMax);
-        // peer netData
-        ret[3] = ByteBuffer.allocate(netBufferMax);
-        return ret;
+        if (d.isServer) {
+            d.key.interestOps(SelectionKey.OP_READ);
+            // the first messages might have arrived with the end of the handshake
+            this.readServer(d);
+        } else {
+            Connection conn = (Connection) d.key.attachment();
+            conn.state = State.OPEN;
+            // reads tell us if the other side goes away
+            d.key.interestOps(SelectionKey.OP_READ);
+            this.flush(conn);
+        }
     }
 
-    private void acceptCon(SelectionKey key) {
-        // create SSLEngine
-        SSLEngine engine = this.sslc.createSSLEngine();
-        engine.setUseClientMode(false);
-        engine.setNeedClientAuth(true);
-        // create buffers
-        ByteBuffer[] bufs = this.createBuffers(engine);
+    private void handshakeFailed(SSLEngineData d) {
+        this.handshakeStats.recordFailure();
+        if (d.isServer) {
+            System.err.println("Handshake failed (accept con)");
+            this.closeQuietly(d);
+        } else {
+            Connection conn = (Connection) d.key.attachment();
+            System.err.println("Handshake failed (init handshake) with " + conn.key);
+            this.connectionLost(conn);
+        }
+    }
+
+    private void closeQuietly(SSLEngineData d) {
+        // already closed (e.g.: the close_notify was sent before its timeout)
+        if (d.myNetData == null) return;
+        if (d.key != null) d.key.cancel();
+        try {
+            d.channel.close();
+        } catch (IOException ignored) {
+        }
+        this.releaseBuffers(d);
+    }
 
+    /* SERVER SIDE */
+    private void acceptCon(SelectionKey key) {
         SocketChannel socketChannel;
         try {
             socketChannel = ((ServerSocketChannel) key.channel()).accept();
+            if (socketChannel == null) return;
             socketChannel.configureBlocking(false);
+            // the handshake's messages are small and each one waits for the other side's
+            socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
         } catch (IOException e) {
             System.err.println("Timed out while waiting for answer (Sock thread) " + this);
             return;
         }
 
-        SSLEngineData d = new SSLEngineData(engine, bufs[0], bufs[1], bufs[2], bufs[3], true);
-        try {
-            socketChannel.register(this.selector, SelectionKey.OP_READ, d);
-        } catch (ClosedChannelException e) {
-            System.err.println("Failed to register.");
-            d.thread.shutdown();
-            return;
-        }
+        EventLoop loop = this.nextLoop();
+        loop.execute(() -> this.startServerHandshake(loop, socketChannel));
+    }
+
+    private void startServerHandshake(EventLoop loop, SocketChannel socketChannel) {
+        // create SSLEngine
+        SSLEngine engine = this.sslc.createSSLEngine();
+        engine.setUseClientMode(false);
+        engine.setNeedClientAuth(true);
+        // create buffers
+        ByteBuffer[] bufs = this.createBuffers(engine);
 
+        SSLEngineData d = new SSLEngineData(engine, bufs[0], bufs[1], bufs[2], true);
+        d.channel = socketChannel;
+        d.loop = loop;
         try {
-            if (this.doHandshake(engine, socketChannel, bufs[1], bufs[3]) != 0) {
-                System.err.println("Handshake failed (accept con)");
-                socketChannel.close();
-                d.thread.shutdown();
-            }
-        } catch (Exception e) {
-            System.err.println("Handshake failed (accept con)");
-            d.thread.shutdown();
-            try {
-                socketChannel.close();
-            } catch (IOException ignored) {
-            }
+            d.key = socketChannel.register(loop.getSelector(), SelectionKey.OP_READ, d);
+            d.handshakeStart = System.nanoTime();
+            engine.beginHandshake();
+            this.stepHandshake(d);
+        } catch (IOException | RuntimeException e) {
+            this.handshakeFailed(d);
         }
     }
 
+    /* the loop that accepts connections */
     @Override
     public void run() {
-        // http://tutorials.jenkov.com/java-nio/selectors.html
-        
-        running.set(true);
-        while (running.get()) {
-            try {
-                this.selector.select();
-            } catch (IOException e) {
-                continue;
-            }
-
-            Iterator<SelectionKey> selectedKeys = this.selector.selectedKeys().iterator();
-            while (selectedKeys.hasNext()) {
-                SelectionKey key = selectedKeys.next();
-                selectedKeys.remove();
-                if (!key.isValid())
-                    continue;
+        this.loops[0].run();
+    }
 
-                try {
-                    if (key.isAcceptable()) {
-                        this.acceptCon(key);
-                    } else if (key.isReadable()) {
-                        SocketChannel socketChannel = (SocketChannel) key.channel();
-                        SSLEngineData d = (SSLEngineData) key.attachment();
-
-                        try {
-                            d.thread.submit(() -> this.readOuter(key, socketChannel, d));
-                        } catch (RejectedExecutionException ignored) {
-                            key.cancel();
-                        }
-                    }
-                } catch (CancelledKeyException ignored) {
-                }
-            }
+    /* called by the loops */
+    private void handleEvent(SelectionKey key) {
+        if (key.isAcceptable()) {
+            this.acceptCon(key);
+        } else if (key.attachment() instanceof Connection) {
+            this.handleClientEvent(key, (Connection) key.attachment());
+        } else {
+            SSLEngineData d = (SSLEngineData) key.attachment();
+            if (d.handshaking)
+                this.resumeHandshake(d);
+            else if (d.closing)
+                this.stepCloseServer(d);
+            else
+                this.readServer(d);
         }
     }
 
-    private void readOuter(SelectionKey key, SocketChannel socketChannel, SSLEngineData d) {
+    private void readServer(SSLEngineData d) {
         try {
-            boolean isClosed = this.read(socketChannel, d);
-
-            // create message instance from the received bytes
-            if (isClosed) {
-                key.cancel();
-                d.thread.shutdown();
-
-                if (d.content.size() > 0) {
-                    ByteArrayInputStream bis = new ByteArrayInputStream(d.content.toByteArray());
-                    d.content.reset();
+            // the messages received so far (the connection stays open for the next ones)
+            List<Message> received = new ArrayList<>();
+            this.read(d, received);
+
+            for (Message msg : received)
+                this.receiveThreadPool.submit(() -> this.observer.handle(msg));
+        } catch (IOException | RejectedExecutionException ignored) {
+            this.closeQuietly(d);
+            // System.err.println("Lost message.");
+        } catch (RuntimeException e) {
+            // e.g.: the engine failed. only this connection is lost, not its loop
+            System.err.println("Closing connection after an unexpected error: " + e);
+            this.closeQuietly(d);
+        }
+    }
 
-                    ObjectInput in = new ObjectInputStream(bis);
-                    Message msg = (Message) in.readObject();
-                    bis.close();
+    /* moves the decrypted bytes (peerAppData) to the buffers of their messages and decodes the complete ones. only
+     * the beginning of a message is copied: the rest is decrypted straight into its buffer (see read) */
+    private void takeMessages(SSLEngineData d, List<Message> received) throws IOException {
+        if (d.frame != null && !d.frame.hasRemaining())
+            received.add(this.decodeFrame(d));
 
-                    // handle message
-                    this.receiveThreadPool.submit(() -> this.observer.handle(msg));
+        d.peerAppData.flip();
+        try {
+            while (true) {
+                if (d.frame == null) {
+                    if (d.peerAppData.remaining() < Integer.BYTES) break;
+                    int size = d.peerAppData.getInt();
+                    if (size < 0 || size > MAX_MESSAGE_SIZE) throw new IOException("Bad message size: " + size);
+                    d.frame = this.bufferPool.allocateMessage(size);
                 }
+
+                int n = Math.min(d.frame.remaining(), d.peerAppData.remaining());
+                d.frame.put(d.peerAppData.duplicate().limit(d.peerAppData.position() + n));
+                d.peerAppData.position(d.peerAppData.position() + n);
+                if (d.frame.hasRemaining()) break;
+                received.add(this.decodeFrame(d));
             }
-        } catch (IOException | ClassNotFoundException ignored) {
-            key.cancel();
-            d.thread.shutdown();
-            // System.err.println("Lost message.");
+        } finally {
+            d.peerAppData.compact();
         }
     }
 
-    private boolean read(SocketChannel socketChannel, SSLEngineData d) throws IOException, ClassNotFoundException {
-        d.peerNetData.clear();
+    /* the message keeps its buffer (e.g.: the chunk of a PUTCHUNK is a slice of it) */
+    private Message decodeFrame(SSLEngineData d) throws IOException {
+        ByteBuffer frame = d.frame.flip();
+        d.frame = null;
+        return MessageCodec.decode(frame);
+    }
 
+    /* peerNetData is kept in write mode between reads: it can have the beginning of a TLS record */
+    private void read(SSLEngineData d, List<Message> received) throws IOException {
         // receive loop - read TLS encoded data from peer
-        int n = socketChannel.read(d.peerNetData);
+        int n = d.channel.read(d.peerNetData);
         // end of stream
         if (n < 0) {
-            this.handleEndOfStream(socketChannel, d);
-            return true;
+            this.handleEndOfStream(d);
+            return;
         }
 
         // process incoming data
         d.peerNetData.flip();
         while (d.peerNetData.hasRemaining()) {
             SSLEngineResult res;
-            res = d.engine.unwrap(d.peerNetData, d.peerAppData);
+            if (d.frame == null) {
+                res = d.engine.unwrap(d.peerNetData, d.peerAppData);
+            } else {
+                // the rest of the message goes to its buffer (and what comes after it to peerAppData, which is empty)
+                res = d.engine.unwrap(d.peerNetData, new ByteBuffer[]{d.frame, d.peerAppData});
+            }
 
             // System.out.println("READ: " + res);
 
             switch (res.getStatus()) {
                 case OK:
-                    d.peerAppData.flip();
-                    d.content.write(Arrays.copyOfRange(d.peerAppData.array(), d.peerAppData.position(),
-                            d.peerAppData.limit()));
-                    d.peerAppData.clear();
+                    this.takeMessages(d, received);
                     break;
                 case BUFFER_OVERFLOW:
                     d.peerAppData = this.handleOverflow(d.engine, d.peerAppData);
                     break;
                 case BUFFER_UNDERFLOW:
-                    d.peerNetData = this.handleUnderflow(d.engine, d.peerNetData, d.peerAppData);
-                    n = socketChannel.read(d.peerNetData);
-                    // end of stream
-                    if (n < 0) {
-                        this.handleEndOfStream(socketChannel, d);
-                        return true;
-                    }
-                    return false;
+                    // the rest of the record hasn't arrived yet
+                    d.peerNetData.compact();
+                    d.peerNetData = this.handleUnderflow(d.engine, d.peerNetData);
+                    return;
                 case CLOSED:
-                    this.closeSSLConnection(socketChannel, d);
-                    return true;
+                    this.closeSSLConnectionServer(d);
+                    return;
                 default:
                     throw new IllegalStateException("Unexpected value: " + res.getStatus());
             }
         }
 
-        return false;
+        d.peerNetData.compact();
     }
 
-    private void handleEndOfStream(SocketChannel socketChannel, SSLEngineData d) {
+    private void handleEndOfStream(SSLEngineData d) {
         System.err.println("Got end of stream from peer. Attempting to close connection.");
         try {
             d.engine.closeInbound();
         } catch (SSLException e) {
             System.err.println("Peer didn't follow the correct connection end procedure.");
         }
+        this.closeSSLConnectionServer(d);
+    }
+
+    /* the other side is done: our close_notify goes out like the client's (see startClose), through OP_WRITE when the
+     * socket is full. the connection is dropped once it is sent, or after CLOSE_TIMEOUT */
+    private void closeSSLConnectionServer(SSLEngineData d) {
+        assert d.loop.inLoop();
+        if (d.closing) return;
+        d.closing = true;
+        // nothing else is read
+        d.key.interestOps(0);
+        d.engine.closeOutbound();
+        this.stepCloseServer(d);
+        if (d.myNetData != null)
+            this.idleEvictor.schedule(() -> d.loop.execute(() -> this.closeQuietly(d)),
+                    CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
+    }
+
+    private void stepCloseServer(SSLEngineData d) {
         try {
-            this.closeSSLConnection(socketChannel, d);
-        } catch (IOException ignored) {
+            if (!this.writeCloseNotify(d)) return;
+        } catch (IOException | RuntimeException ignored) {
         }
+        this.closeQuietly(d);
     }
 
-    private void write(SocketChannel socketChannel, SSLEngineData d) throws IOException {
-        // send loop
-        while (d.myAppData.hasRemaining()) {
-            SSLEngineResult res;
-            res = d.engine.wrap(d.myAppData, d.myNetData);
+    /* CLIENT SIDE */
+
+    /* the returned future completes once the message has left this peer (exceptionally if it couldn't) */
+    public Future<?> send(Message message) {
+        // prepare message to send: its size followed by the encoded message
+        ByteBuffer[] encoded = MessageCodec.encode(message);
+        ByteBuffer[] dataToSend = new ByteBuffer[encoded.length + 1];
+        int size = 0;
+        for (int i = 0; i < encoded.length; ++i) {
+            dataToSend[i + 1] = encoded[i];
+            size += encoded[i].remaining();
+        }
+        dataToSend[0] = ByteBuffer.allocate(Integer.BYTES).putInt(0, size);
 
-            //System.out.println("WRITE " + res);
+        Pending pending = new Pending(dataToSend);
+        this.enqueue(message.getDestAddress(), message.getDestPort(), pending);
+        return pending.sent;
+    }
 
-            switch (res.getStatus()) {
-                case OK:
-                    d.myNetData.flip();
-                    // send TLS encoded data to peer
-                    while (d.myNetData.hasRemaining()) {
-                        socketChannel.write(d.myNetData);
-                    }
-                    break;
-                case BUFFER_OVERFLOW:
-                    d.myNetData = this.handleWrapOverflow(d.engine, d.myNetData);
+    /* queues the message on the connection to the peer (opened by its loop if needed) */
+    private void enqueue(InetAddress address, int port, Pending pending) {
+        String key = address.getHostAddress() + ":" + port;
+        Connection conn;
+        while (true) {
+            conn = this.connections.computeIfAbsent(key, k -> new Connection(address, port, k, this.nextLoop()));
+            synchronized (conn) {
+                if (!conn.closed) {
+                    conn.queue.add(pending);
+                    conn.lastUsed = System.nanoTime();
                     break;
-                case BUFFER_UNDERFLOW:
-                    throw new SSLException("WTF UNDERFLOW");
-                case CLOSED:
-                    System.out.println("Premature closure");
-                    this.closeSSLConnection(socketChannel, d);
-                    return;
+                }
             }
+            // it is being closed: we need a new one
+            this.connections.remove(key, conn);
         }
-    }
 
-    public void send(Message message) {
-        this.sendThreadPool.execute(() -> this.sendInner(message));
+        if (conn.flushScheduled.compareAndSet(false, true)) {
+            Connection toFlush = conn;
+            conn.loop.execute(() -> this.flush(toFlush));
+        }
     }
 
-    private void sendInner(Message message) {
-        InetAddress address = message.getDestAddress();
-        int port = message.getDestPort();
-        // create socket channel
-        SocketChannel socketChannel;
+    /* sends the queued messages (connection's loop) */
+    private void flush(Connection conn) {
+        conn.flushScheduled.set(false);
         try {
-            socketChannel = SocketChannel.open();
-            socketChannel.configureBlocking(false);
-            socketChannel.connect(new InetSocketAddress(address, port));
-            while (!socketChannel.finishConnect()) { /* busy-wait */ }
-        } catch (IOException e) {
-            System.err.println("Connection failed to " + address + ":" + port);
-            return;
+            switch (conn.state) {
+                case NEW:
+                    this.connect(conn);
+                    break;
+                case OPEN:
+                    this.writeQueued(conn);
+                    break;
+                default:
+                    // the messages are sent when the connection is ready
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            this.connectionLost(conn);
         }
+    }
 
+    private void connect(Connection conn) throws IOException {
+        assert conn.loop.inLoop();
+        // create socket channel (the connection is established in the background: see OP_CONNECT)
+        conn.channel = SocketChannel.open();
+        conn.channel.configureBlocking(false);
+        conn.channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        conn.state = State.CONNECTING;
+        SelectionKey key = conn.channel.register(conn.loop.getSelector(), SelectionKey.OP_CONNECT, conn);
+        if (conn.channel.connect(new InetSocketAddress(conn.address, conn.port)))
+            this.connected(conn, key);
+    }
+
+    private void connected(Connection conn, SelectionKey key) throws IOException {
+        assert conn.loop.inLoop();
         // create SSLEngine
-        SSLEngine engine = this.sslc.createSSLEngine(address.getHostAddress(), port);
+        SSLEngine engine = this.sslc.createSSLEngine(conn.address.getHostAddress(), conn.port);
         engine.setUseClientMode(true);
         // create buffers
         ByteBuffer[] bufs = this.createBuffers(engine);
+
+        conn.d = new SSLEngineData(engine, bufs[0], bufs[1], bufs[2], false);
+        conn.d.channel = conn.channel;
+        conn.d.loop = conn.loop;
+        conn.d.key = key;
+        conn.state = State.HANDSHAKING;
+        key.interestOps(SelectionKey.OP_READ);
+        conn.d.handshakeStart = System.nanoTime();
+        engine.beginHandshake();
+        this.stepHandshake(conn.d);
+    }
+
+    private void handleClientEvent(SelectionKey key, Connection conn) {
         try {
-            if (this.doHandshake(engine, socketChannel, bufs[1], bufs[3]) != 0) {
-                System.err.println("Handshake failed (init handshake)");
-                return;
+            switch (conn.state) {
+                case CONNECTING:
+                    if (key.isConnectable() && conn.channel.finishConnect())
+                        this.connected(conn, key);
+                    break;
+                case HANDSHAKING:
+                    this.stepHandshake(conn.d);
+                    break;
+                case OPEN:
+                    if (key.isReadable()) this.readClient(conn);
+                    if (key.isValid() && key.isWritable()) this.writeQueued(conn);
+                    break;
+                case CLOSING:
+                    if (key.isReadable()) this.readClient(conn);
+                    if (key.isValid() && key.isWritable()) this.writeCloseNotify(conn.d);
+                    break;
+                default:
+                    break;
             }
-            // socketChannel.configureBlocking(true);
-        } catch (Exception e) {
-            System.err.println("Handshake failed (init handshake)");
-            return;
+        } catch (IOException | RuntimeException e) {
+            if (conn.state == State.CONNECTING)
+                System.err.println("Connection failed to " + conn.key);
+            else if (conn.state == State.HANDSHAKING)
+                this.handshakeStats.recordFailure();
+            this.connectionLost(conn);
         }
+    }
 
-        // prepare message to send
-        byte[] dataToSend;
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-            ObjectOutputStream outputStream = new ObjectOutputStream(bos);
-            outputStream.writeObject(message);
-            outputStream.flush();
-            dataToSend = bos.toByteArray();
-        } catch (Exception ignored) {
-            return;
-        }
+    /* wraps and writes the queued messages until they are all sent or the socket is full */
+    private void writeQueued(Connection conn) throws IOException {
+        SSLEngineData d = conn.d;
+        while (true) {
+            if (!this.flushNetData(d)) return;
 
-        // send message
-        SSLEngineData d = new SSLEngineData(engine, bufs[0], bufs[1], bufs[2], bufs[3], false);
+            if (conn.current != null && !hasRemaining(conn.current.data)) {
+                conn.current.sent.complete(null);
+                conn.current = null;
+            }
+            if (conn.current == null) {
+                synchronized (conn) {
+                    conn.current = conn.queue.poll();
+                }
+                if (conn.current == null) return;
+            }
 
-        // IMP
-        // IMP keep this here because there's a race condition involving the server selector detecting read operations
-        // this sleep simulates network delays (not present on localhost connections)
-        try {
-            Thread.sleep(500);
-        } catch (InterruptedException e) {
-            return;
+            d.myNetData.clear();
+            SSLEngineResult res = d.engine.wrap(conn.current.data, d.myNetData);
+            d.myNetData.flip();
+            switch (res.getStatus()) {
+                case OK:
+                    break;
+                case BUFFER_OVERFLOW:
+                    d.myNetData = this.handleWrapOverflow(d.engine, d.myNetData).flip();
+                    break;
+                case CLOSED:
+                    throw new SSLException("Premature closure");
+                default:
+                    throw new IllegalStateException("Unexpected value: " + res.getStatus());
+            }
         }
+    }
 
-        d.myAppData.clear().put(dataToSend).flip();
-        try {
-            this.write(socketChannel, d);
-        } catch (IOException e) {
-            e.printStackTrace();
+    /* the other side only sends us TLS messages (e.g.: the session tickets that let us resume the session later) */
+    private void readClient(Connection conn) throws IOException {
+        SSLEngineData d = conn.d;
+        int n = conn.channel.read(d.peerNetData);
+        if (n < 0) {
+            if (conn.state == State.CLOSING) this.finishClose(conn);
+            else this.connectionLost(conn);
+            return;
         }
 
-        // close connection
-        try {
-            this.closeSSLConnectionClient(socketChannel, d);
-        } catch (IOException e) {
-            System.err.println("Socket close wasn't orderly.");
+        d.peerNetData.flip();
+        while (d.peerNetData.hasRemaining()) {
+            SSLEngineResult res = d.engine.unwrap(d.peerNetData, d.peerAppData);
+            if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
+                if (conn.state == State.CLOSING) this.finishClose(conn);
+                else this.connectionLost(conn);
+                return;
+            }
+            if (res.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) break;
+            if (res.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW)
+                d.peerAppData = this.handleOverflow(d.engine, d.peerAppData);
+            // the other side doesn't send messages through our connection
+            d.peerAppData.clear();
         }
+        d.peerNetData.compact();
+        d.peerNetData = this.handleUnderflow(d.engine, d.peerNetData);
     }
 
-    private void closeSSLConnectionServer(SocketChannel socketChannel, SSLEngineData d) throws IOException {
-        d.engine.closeInbound();
+    /* the connection broke: the messages that weren't sent yet get one more chance on a new connection */
+    private void connectionLost(Connection conn) {
+        assert conn.loop.inLoop();
+        List<Pending> unsent;
+        synchronized (conn) {
+            conn.closed = true;
+            unsent = new ArrayList<>(conn.queue);
+            conn.queue.clear();
+        }
+        this.connections.remove(conn.key, conn);
+        this.finishClose(conn);
 
-        // closing outbound
-        d.engine.closeOutbound();
-        d.myAppData.clear().flip(); // empty buffer
-        while (!d.engine.isOutboundDone()) {
-            d.myNetData.clear();
-            SSLEngineResult res = d.engine.wrap(d.myAppData, d.myNetData);
-            // System.out.println("OUTBOUND " + res);
+        if (conn.current != null) {
+            System.err.println("Failed to send message to " + conn.key);
+            conn.current.sent.completeExceptionally(new IOException("Failed to send message to " + conn.key));
+            conn.current = null;
+        }
+        for (Pending pending : unsent) {
+            if (pending.retried) {
+                System.err.println("Failed to send message to " + conn.key);
+                pending.sent.completeExceptionally(new IOException("Failed to send message to " + conn.key));
+            } else {
+                pending.retried = true;
+                this.enqueue(conn.address, conn.port, pending);
+            }
+        }
+    }
 
-            d.myNetData.flip();
-            while (d.myNetData.hasRemaining())
-                socketChannel.write(d.myNetData);
+    /* closing outbound: our close_notify is sent and we wait (on the loop) for the other side's */
+    private void startClose(Connection conn) {
+        assert conn.loop.inLoop();
+        synchronized (conn) {
+            conn.closed = true;
+        }
+        if (conn.state == State.CLOSING || conn.state == State.CLOSED) return;
+        if (conn.state != State.OPEN) {
+            this.connectionLost(conn);
+            return;
         }
-        // closed outbound
 
-        socketChannel.close();
+        conn.state = State.CLOSING;
+        conn.d.engine.closeOutbound();
+        try {
+            this.writeCloseNotify(conn.d);
+        } catch (IOException | RuntimeException e) {
+            this.finishClose(conn);
+            return;
+        }
+        this.idleEvictor.schedule(() -> conn.loop.execute(() -> this.finishClose(conn)),
+                CLOSE_TIMEOUT, TimeUnit.MILLISECONDS);
     }
 
-    private void closeSSLConnectionClient(SocketChannel socketChannel, SSLEngineData d) throws IOException {
-        // closing outbound
-        d.engine.closeOutbound();
-        d.myAppData.clear().flip(); // empty buffer
-        while (!d.engine.isOutboundDone()) {
-            d.myNetData.clear();
-            SSLEngineResult res = d.engine.wrap(d.myAppData, d.myNetData);
-            //System.out.println("OUTBOUND " + res);
+    /* true once our close_notify has been sent */
+    private boolean writeCloseNotify(SSLEngineData d) throws IOException {
+        while (true) {
+            if (!this.flushNetData(d)) return false;
+            if (d.engine.isOutboundDone()) return true;
 
+            d.myNetData.clear();
+            d.engine.wrap(EMPTY, d.myNetData);
             d.myNetData.flip();
-            while (d.myNetData.hasRemaining())
-                socketChannel.write(d.myNetData);
         }
-        // closed outbound
+    }
 
-        // closing inbound
-        int tries = 20;
-        xau:
-        while (true) {
-            d.peerNetData.clear();
-            int n = socketChannel.read(d.peerNetData);
-            //System.out.println(n);
-            if (n < 0) {
-                d.engine.closeOutbound();
-                socketChannel.close();
-                return;
-            } else if (n == 0) {
-                if (tries-- <= 0) break; // close socket if we waited too long
-                try {
-                    Thread.sleep(100);
-                } catch (InterruptedException e) {
-                    break; // close socket if interrupted
-                }
-                continue;
+    private void finishClose(Connection conn) {
+        assert conn.loop.inLoop();
+        if (conn.state == State.CLOSED) return;
+        conn.state = State.CLOSED;
+        if (conn.channel != null) {
+            SelectionKey key = conn.channel.keyFor(conn.loop.getSelector());
+            if (key != null) key.cancel();
+            try {
+                conn.channel.close();
+            } catch (IOException ignored) {
             }
+        }
+        if (conn.d != null) this.releaseBuffers(conn.d);
+        conn.closeDone.complete(null);
+    }
 
-            d.peerNetData.flip();
-            while (d.peerNetData.hasRemaining()) {
-                SSLEngineResult res = d.engine.unwrap(d.peerNetData, d.peerAppData);
-                //System.out.println("Closure: " + res);
-
-                if (res.getStatus() == SSLEngineResult.Status.CLOSED) {
-                    d.engine.closeInbound();
-                    break xau;
-                }
-            }
+    private void closeIdleConnections() {
+        long now = System.nanoTime();
+        for (Connection conn : this.connections.values()) {
+            if (TimeUnit.NANOSECONDS.toMillis(now - conn.lastUsed) >= IDLE_TIMEOUT)
+                conn.loop.execute(() -> this.closeIfIdle(conn));
         }
-        // closed inbound
+    }
 
-        socketChannel.close();
+    private void closeIfIdle(Connection conn) {
+        synchronized (conn) {
+            boolean idle = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - conn.lastUsed) >= IDLE_TIMEOUT;
+            if (!idle || !conn.queue.isEmpty() || conn.current != null) return;
+            conn.closed = true;
+        }
+        this.connections.remove(conn.key, conn);
+        this.startClose(conn);
     }
 
-    private void closeSSLConnection(SocketChannel socketChannel, SSLEngineData d) throws IOException {
-        if (d.isServer) this.closeSSLConnectionServer(socketChannel, d);
-        else this.closeSSLConnectionClient(socketChannel, d);
+    private static boolean hasRemaining(ByteBuffer[] bufs) {
+        for (ByteBuffer buf : bufs)
+            if (buf.hasRemaining()) return true;
+        return false;
     }
 
     @Override
     public String toString() {
         return address + ":" + port + "\n";
     }
-}
\ No newline at end of file
+}
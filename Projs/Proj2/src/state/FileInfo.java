@@ -1,5 +1,6 @@
 package state;
 
+import chord.ChordId;
 import utils.Pair;
 
 import java.io.Serializable;
@@ -7,14 +8,14 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 public class FileInfo implements Serializable {
-    // chunkNo -> (Id do chunk, Num de sequencia (-1 Se nao estou a dar store))
-    private final ConcurrentMap<Integer, Pair<Integer, Integer>> chunkInfo;
+    // chunkNo -> (Id do chunk (null se nao o sabemos), Num de sequencia (-1 Se nao estou a dar store))
+    private final ConcurrentMap<Integer, Pair<ChordId, Integer>> chunkInfo;
     private String filePath = null;  // only set if we are the initiator
     private Integer desiredRep;
 
     public FileInfo(int desiredRep) {
         this.desiredRep = desiredRep;
-        this.chunkInfo = new ConcurrentHashMap<Integer, Pair<Integer, Integer>>();
+        this.chunkInfo = new ConcurrentHashMap<Integer, Pair<ChordId, Integer>>();
     }
 
     public FileInfo(String filePath, int desiredRep) {
@@ -24,7 +25,7 @@ public class FileInfo implements Serializable {
 
     public void declareChunk(int chunkNo) {
         if (!this.chunkInfo.containsKey(chunkNo))
-            this.chunkInfo.put(chunkNo, new Pair<Integer, Integer>(-1, -1));
+            this.chunkInfo.put(chunkNo, new Pair<ChordId, Integer>(null, -1));
     }
 
     public boolean amIStoringChunk(int chunkNo) {
@@ -32,7 +33,7 @@ public class FileInfo implements Serializable {
         return this.chunkInfo.get(chunkNo).p2 != -1;
     }
 
-    public void setAmStoringChunk(int chunkNo, int chunkId, int seqNumber) {
+    public void setAmStoringChunk(int chunkNo, ChordId chunkId, int seqNumber) {
         if (!this.chunkInfo.containsKey(chunkNo)) return;
         this.chunkInfo.put(chunkNo, new Pair<>(chunkId, seqNumber));
     }
@@ -64,14 +65,14 @@ public class FileInfo implements Serializable {
         return this.chunkInfo.get(chunkNo).p2;
     }
 
-    public Integer getChunkId(int chunkNo) {
+    public ChordId getChunkId(int chunkNo) {
         return this.chunkInfo.get(chunkNo).p1;
     }
 
 
 
     // iteration
-    public ConcurrentMap<Integer, Pair<Integer, Integer>> getAllChunks() {
+    public ConcurrentMap<Integer, Pair<ChordId, Integer>> getAllChunks() {
         return  this.chunkInfo;
     }
 
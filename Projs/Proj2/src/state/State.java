@@ -1,5 +1,6 @@
 package state;
 
+import chord.ChordId;
 import file.DigestFile;
 import utils.Pair;
 
@@ -10,10 +11,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 // this class is a singleton
 public class State implements Serializable {
+    // keeps the state saved by older versions readable
+    private static final long serialVersionUID = -3950069439359211179L;
     public transient static final String REPMAPNAME = "repMap.txt";
+    // the state of each file is guarded by one of these (hashed by fileId), so changes to different files
+    // don't wait for each other. has to be initialized before st
+    private transient static final int LOCK_STRIPES = 64;
+    private transient static final Object[] fileLocks = State.createFileLocks();
     public transient static final State st = State.importMap();
 
     // stores the running tasks for recovering on program end
@@ -22,22 +30,34 @@ public class State implements Serializable {
     // fileId -> fileInformation
     private final ConcurrentMap<String, FileInfo> replicationMap;
     // stores the chunks that our successor is storing (FileId, ChunkId) -> ChunkNo
-    private Map<Pair<String, Integer>, Integer> succChunks;
+    private volatile Map<Pair<String, Integer>, ChordId> succChunks;
 
     private volatile Long maxDiskSpaceB;
-    private volatile transient long filledStorageSizeB;
+    private transient AtomicLong filledStorageSizeB;
 
     private State() {
         this.tasks = new ConcurrentHashMap<>();
         this.replicationMap = new ConcurrentHashMap<>();
         this.maxDiskSpaceB = -1L;
-        succChunks = new HashMap<>();
+        succChunks = new ConcurrentHashMap<>();
     }
 
     public static State getState() {
         return st;
     }
 
+    private static Object[] createFileLocks() {
+        Object[] ret = new Object[LOCK_STRIPES];
+        for (int i = 0; i < ret.length; ++i)
+            ret[i] = new Object();
+        return ret;
+    }
+
+    /* lock that guards the state of the given file. hold it to make multiple changes to a file atomically */
+    public Object getFileLock(String fileId) {
+        return fileLocks[Math.floorMod(fileId.hashCode(), LOCK_STRIPES)];
+    }
+
     // FOR SERIALIZATION
     public static State importMap() {
         State ret;
@@ -47,6 +67,8 @@ public class State implements Serializable {
             ret = (State) in.readObject();
             in.close();
             fileIn.close();
+            // older versions saved a HashMap
+            ret.succChunks = new ConcurrentHashMap<>(ret.succChunks);
         } catch (IOException | ClassNotFoundException e) {
             ret = new State();
         }
@@ -97,33 +119,34 @@ public class State implements Serializable {
     }
 
     public void initFilledStorage() {
-        this.filledStorageSizeB = DigestFile.getStorageSize();
+        this.filledStorageSizeB = new AtomicLong(DigestFile.getStorageSize());
     }
 
     public long getFilledStorageB() {
-        return this.filledStorageSizeB;
+        return this.filledStorageSizeB.get();
     }
 
+    /* reserves (or frees, when negative) storage space. the check and the reservation are one atomic step,
+     * so concurrent PUTCHUNKs can't go over the maximum together */
     public boolean updateStorageSize(long sizeToAddB) {
         if (sizeToAddB < 0) {
-            filledStorageSizeB += sizeToAddB;
+            this.filledStorageSizeB.addAndGet(sizeToAddB);
             return true;
         }
 
-        if (maxDiskSpaceB < 0) { // is infinite
-            filledStorageSizeB += sizeToAddB;
-            return true;
-        }
-
-        if (filledStorageSizeB + sizeToAddB < maxDiskSpaceB) {
-            filledStorageSizeB += sizeToAddB;
-            return true;
+        while (true) {
+            long filled = this.filledStorageSizeB.get();
+            long max = this.maxDiskSpaceB;
+            // max < 0 => is infinite
+            if (max >= 0 && filled + sizeToAddB >= max)
+                return false;
+            if (this.filledStorageSizeB.compareAndSet(filled, filled + sizeToAddB))
+                return true;
         }
-        return false;
     }
 
     public boolean isStorageFull() {
-        return this.maxDiskSpaceB >= 0 && (this.filledStorageSizeB >= this.maxDiskSpaceB);
+        return this.maxDiskSpaceB >= 0 && (this.filledStorageSizeB.get() >= this.maxDiskSpaceB);
     }
 
     public boolean isInitiator(String fileId) {
@@ -144,22 +167,24 @@ public class State implements Serializable {
 
     // ADD
     public void addFileEntry(String fileId, String filePath, int desiredRep) {
-        if (!this.replicationMap.containsKey(fileId)) {
-            this.replicationMap.put(fileId, new FileInfo(filePath, desiredRep));
-        } else {
-            FileInfo fileInfo = this.replicationMap.get(fileId);
-            fileInfo.setDesiredRep(desiredRep);
+        synchronized (this.getFileLock(fileId)) {
+            if (!this.replicationMap.containsKey(fileId)) {
+                this.replicationMap.put(fileId, new FileInfo(filePath, desiredRep));
+            } else {
+                FileInfo fileInfo = this.replicationMap.get(fileId);
+                fileInfo.setDesiredRep(desiredRep);
+            }
         }
-
-
     }
 
     public void addFileEntry(String fileId, int desiredRep) {
-        if (!this.replicationMap.containsKey(fileId)) {
-            this.replicationMap.put(fileId, new FileInfo(desiredRep));
-        } else {
-            FileInfo fileInfo = this.replicationMap.get(fileId);
-            fileInfo.setDesiredRep(desiredRep);
+        synchronized (this.getFileLock(fileId)) {
+            if (!this.replicationMap.containsKey(fileId)) {
+                this.replicationMap.put(fileId, new FileInfo(desiredRep));
+            } else {
+                FileInfo fileInfo = this.replicationMap.get(fileId);
+                fileInfo.setDesiredRep(desiredRep);
+            }
         }
     }
 
@@ -168,9 +193,11 @@ public class State implements Serializable {
     }
 
     public void declareChunk(String fileId, int chunkNo) {
-        // only declares if it isn't declared yet
-        if (!this.replicationMap.containsKey(fileId)) return;
-        this.replicationMap.get(fileId).declareChunk(chunkNo);
+        synchronized (this.getFileLock(fileId)) {
+            // only declares if it isn't declared yet
+            if (!this.replicationMap.containsKey(fileId)) return;
+            this.replicationMap.get(fileId).declareChunk(chunkNo);
+        }
     }
 
     // REPLICATION DEGREE
@@ -182,7 +209,7 @@ public class State implements Serializable {
     }
 
     // SUCCESSOR STORED CHUNKS
-    public void addSuccChunk(String fileId, int chunkNo, int chunkId) {
+    public void addSuccChunk(String fileId, int chunkNo, ChordId chunkId) {
         this.succChunks.put(new Pair<>(fileId, chunkNo), chunkId);
     }
 
@@ -194,8 +221,8 @@ public class State implements Serializable {
         this.succChunks.entrySet().removeIf(e -> e.getKey().p1.equals(fileId));
     }
 
-    public void replaceSuccChunk(Map<Pair<String, Integer>, Integer> map) {
-        this.succChunks = map;
+    public void replaceSuccChunk(Map<Pair<String, Integer>, ChordId> map) {
+        this.succChunks = new ConcurrentHashMap<>(map);
     }
 
     public void clearSuccChunks() {
@@ -206,7 +233,7 @@ public class State implements Serializable {
         return this.succChunks.size() != 0;
     }
 
-    public Map<Pair<String, Integer>, Integer> getSuccChunksIds() {
+    public Map<Pair<String, Integer>, ChordId> getSuccChunksIds() {
         return this.succChunks;
     }
 
@@ -216,14 +243,18 @@ public class State implements Serializable {
         return this.replicationMap.get(fileId).amIStoringChunk(chunkNo);
     }
 
-    public void setAmStoringChunk(String fileId, int chunkNo, int chunkId, int seqNumber) {
-        if (!this.replicationMap.containsKey(fileId)) return;
-        this.replicationMap.get(fileId).setAmStoringChunk(chunkNo, chunkId, seqNumber);
+    public void setAmStoringChunk(String fileId, int chunkNo, ChordId chunkId, int seqNumber) {
+        synchronized (this.getFileLock(fileId)) {
+            if (!this.replicationMap.containsKey(fileId)) return;
+            this.replicationMap.get(fileId).setAmStoringChunk(chunkNo, chunkId, seqNumber);
+        }
     }
 
     public void setAmStoringChunk(String fileId, int chunkNo, int seqNumber) {
-        if (!this.replicationMap.containsKey(fileId)) return;
-        this.replicationMap.get(fileId).setAmStoringChunk(chunkNo, seqNumber);
+        synchronized (this.getFileLock(fileId)) {
+            if (!this.replicationMap.containsKey(fileId)) return;
+            this.replicationMap.get(fileId).setAmStoringChunk(chunkNo, seqNumber);
+        }
     }
 
     // ITERATION
@@ -236,15 +267,15 @@ public class State implements Serializable {
         return this.replicationMap;
     }
 
-    public Map<Pair<String, Integer>, Integer> getAllStoredChunksId() {
-        Map<Pair<String, Integer>, Integer> res = new HashMap<>();
+    public Map<Pair<String, Integer>, ChordId> getAllStoredChunksId() {
+        Map<Pair<String, Integer>, ChordId> res = new HashMap<>();
         for (String fileId : this.replicationMap.keySet()) {
             FileInfo fileInfo = this.replicationMap.get(fileId);
             if (!fileInfo.isInitiator()) {
                 for (var chunk: fileInfo.getAllChunks().entrySet()) {
                     int chunkNo = chunk.getKey();
-                    if (fileInfo.amIStoringChunk(chunkNo)) {
-                        int chunkId = chunk.getValue().p1;
+                    ChordId chunkId = chunk.getValue().p1;
+                    if (fileInfo.amIStoringChunk(chunkNo) && chunkId != null) {
                         res.put(new Pair<>(fileId, chunkNo), chunkId);
                     }
                 }
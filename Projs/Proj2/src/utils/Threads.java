@@ -0,0 +1,53 @@
+package utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/*
+ * Where the peer's tasks run. By default they run on pools of platform threads. With -Dpeer.threads=virtual each task
+ * of the pools of blocking tasks (disk, sockets, sleeps) gets its own virtual thread, so it doesn't hold a scarce pool
+ * thread. The bounded pools (CPU-bound work, or tasks that hold limited resources like buffers) always use platform
+ * threads. Virtual threads only exist in Java 21+: on older JVMs the option is ignored (with a warning).
+ */
+public class Threads {
+    private static final ThreadFactory virtualThreadFactory = createVirtualThreadFactory();
+    public static final boolean VIRTUAL = virtualThreadFactory != null;
+
+    /* Thread.ofVirtual().factory(), without needing Java 21 to compile (same for newThreadPerTaskExecutor) */
+    private static ThreadFactory createVirtualThreadFactory() {
+        if (!System.getProperty("peer.threads", "platform").equals("virtual"))
+            return null;
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            System.err.println("Virtual threads aren't supported by this JVM. Using platform threads.");
+            return null;
+        }
+    }
+
+    private static ExecutorService newThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class)
+                    .invoke(null, virtualThreadFactory);
+        } catch (ReflectiveOperationException e) {
+            // unreachable: virtual threads exist
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* nThreads platform threads: at most nThreads tasks run at a time (even with virtual threads) */
+    public static ExecutorService newPool(int nThreads) {
+        return Executors.newFixedThreadPool(nThreads);
+    }
+
+    /* for blocking tasks: as many platform threads as there are running tasks (reused), or a virtual thread per task */
+    public static ExecutorService newCachedPool(ThreadFactory platformThreadFactory) {
+        if (VIRTUAL)
+            return newThreadPerTaskExecutor();
+        return Executors.newCachedThreadPool(platformThreadFactory);
+    }
+}